@@ -1,5 +1,6 @@
 package com.thetechnovator.ssh;
 
+import static com.thetechnovator.ssh.Constants.CMD_PREFIX;
 import static com.thetechnovator.ssh.Constants.CMD_SUFFIX;
 
 import java.io.IOException;
@@ -41,6 +42,12 @@ public abstract class AbstractCommandExecutor {
 	protected static String getCommandWithEndMarker(String cmd) {
 		return cmd+CMD_SUFFIX;
 	}
+	protected static String getCommandWithStartMarker(String cmd) {
+		return CMD_PREFIX+cmd;
+	}
+	protected static String getCommandWithMarkers(String cmd) {
+		return CMD_PREFIX+cmd+CMD_SUFFIX;
+	}
 	protected static void sleep(int ms) {
 		try {
 			Thread.sleep(ms);
@@ -0,0 +1,213 @@
+package com.thetechnovator.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.math.NumberUtils;
+
+/**
+ * Splits the output of a batch of commands into the output of each command. Every command is framed by a start record
+ * (GS STX index US) and an end record (GS RS exit-code US). Anything outside the records, like the echo and the prompt
+ * of a shell, is ignored. Records may span across chunks.
+ *
+ * The maximum execution and inactivity times are enforced per command. The watchdog of a command starts when the
+ * previous one has completed.
+ *
+ * @author JogaSingh
+ *
+ */
+final class BatchDemultiplexer extends OutputStream {
+	private static final int MAX_NUMBER_LENGTH = 11;
+
+	private enum State {
+		OUTSIDE, START_MARKER, INDEX, OUTPUT, END_MARKER, EXIT_CODE, FAILED
+	}
+
+	private final List<SshCommand> cmds;
+	private final Runnable abort;
+	private final List<CommandResult> results = new ArrayList<>();
+	private final StringBuilder number = new StringBuilder();
+	private State state = State.OUTSIDE;
+	private ByteArrayOutputStream captured;
+	private CommandWatchdog watchdog;
+	private volatile String error;
+
+	/**
+	 * @param cmds  - commands of the batch in the order they are executed
+	 * @param abort - called on timeout or invalid records to stop the batch, e.g. by closing the channel
+	 */
+	BatchDemultiplexer(List<SshCommand> cmds, Runnable abort) {
+		this.cmds = cmds;
+		this.abort = abort;
+	}
+
+	/**
+	 * Starts the watchdog of the first command. To be called when the batch has been sent.
+	 */
+	synchronized void start() {
+		watch(0);
+	}
+
+	/**
+	 * Stops the watchdog of the running command, if any.
+	 */
+	synchronized void stop() {
+		if (watchdog != null) {
+			watchdog.stop();
+			watchdog = null;
+		}
+	}
+
+	synchronized boolean isComplete() {
+		return results.size() == cmds.size();
+	}
+
+	synchronized List<CommandResult> getResults() {
+		return results;
+	}
+
+	/**
+	 * Timeout or protocol error which ended the batch, 'null' if none.
+	 */
+	String getError() {
+		return error;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] buf, int off, int len) throws IOException {
+		if (watchdog != null) {
+			watchdog.touch();
+		}
+		int runStart = -1;
+		for (int i = off; i < off + len && state != State.FAILED; i++) {
+			int c = buf[i] & 0xFF;
+			switch (state) {
+			case OUTSIDE:
+				if (c == Constants.END_OF_TEXT_GROUP) {
+					state = State.START_MARKER;
+				}
+				break;
+			case START_MARKER:
+				number.setLength(0);
+				state = c == Constants.START_OF_TEXT ? State.INDEX : c == Constants.END_OF_TEXT_GROUP ? State.START_MARKER : State.OUTSIDE;
+				break;
+			case INDEX:
+				if (c == Constants.END_OF_TEXT_UNIT) {
+					startCommand(number.toString());
+				} else if (Character.isDigit(c) && number.length() < MAX_NUMBER_LENGTH) {
+					number.append((char) c);
+				} else {
+					// not a record of ours
+					state = State.OUTSIDE;
+				}
+				break;
+			case OUTPUT:
+				if (c == Constants.END_OF_TEXT_GROUP) {
+					emit(buf, runStart, i);
+					runStart = -1;
+					state = State.END_MARKER;
+				} else if (runStart == -1) {
+					runStart = i;
+				}
+				break;
+			case END_MARKER:
+				if (c == Constants.END_OF_TEXT_RECORD) {
+					number.setLength(0);
+					state = State.EXIT_CODE;
+				} else {
+					// the group separator was part of the output
+					emit(new byte[] { Constants.END_OF_TEXT_GROUP }, 0, 1);
+					if (c != Constants.END_OF_TEXT_GROUP) {
+						state = State.OUTPUT;
+						runStart = i;
+					}
+				}
+				break;
+			case EXIT_CODE:
+				if (c == Constants.END_OF_TEXT_UNIT) {
+					finishCommand(number.toString());
+				} else if (number.length() < MAX_NUMBER_LENGTH) {
+					number.append((char) c);
+				} else {
+					fail("Invalid Response marker record. Not a valid exit code: " + number);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		if (state == State.OUTPUT) {
+			emit(buf, runStart, off + len);
+		}
+	}
+
+	private void startCommand(String index) {
+		if (!NumberUtils.isDigits(index) || Integer.parseInt(index) != results.size()) {
+			fail("Invalid start marker record. Expected command " + results.size() + " but received: " + index);
+			return;
+		}
+		SshCommand cmd = cmds.get(results.size());
+		if (cmd.isWriteOutputToConsole()) {
+			System.out.println(cmd.getCommandLine());
+		}
+		captured = cmd.getOutputStream() == null ? new ByteArrayOutputStream() : null;
+		state = State.OUTPUT;
+	}
+
+	private void finishCommand(String exitCode) throws IOException {
+		if (!NumberUtils.isCreatable(exitCode)) {
+			fail("Invalid Response marker record. Not a valid exit code: " + exitCode);
+			return;
+		}
+		SshCommand cmd = cmds.get(results.size());
+		if (cmd.getOutputStream() != null) {
+			cmd.getOutputStream().flush();
+		}
+		String output = captured != null ? new String(captured.toByteArray(), SshHelper.UTF8) : null;
+		results.add(new CommandResult(cmd, NumberUtils.createInteger(exitCode), output));
+		captured = null;
+		state = State.OUTSIDE;
+		stop();
+		if (!isComplete()) {
+			watch(results.size());
+		}
+	}
+
+	private void emit(byte[] buf, int runStart, int end) throws IOException {
+		if (runStart == -1 || end <= runStart) {
+			return;
+		}
+		SshCommand cmd = cmds.get(results.size());
+		if (cmd.isWriteOutputToConsole()) {
+			System.out.write(buf, runStart, end - runStart);
+		}
+		if (cmd.getOutputStream() != null) {
+			cmd.getOutputStream().write(buf, runStart, end - runStart);
+		}
+		if (captured != null) {
+			captured.write(buf, runStart, end - runStart);
+		}
+	}
+
+	private void watch(int index) {
+		watchdog = CommandWatchdog.start(cmds.get(index), message -> {
+			error = message;
+			abort.run();
+		});
+	}
+
+	private void fail(String message) {
+		error = message;
+		state = State.FAILED;
+		stop();
+		abort.run();
+	}
+}
@@ -0,0 +1,151 @@
+package com.thetechnovator.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.client.channel.ChannelExec;
+import org.apache.sshd.client.channel.ClientChannelEvent;
+
+/**
+ * Executes a batch of commands with a single round trip. All commands are written at once, each framed by a start and an
+ * end marker carrying its index and exit code, and the output is split per command by a {@link BatchDemultiplexer}.
+ *
+ * Commands are executed one after the other, a failing command does not stop the following ones. The standard input of
+ * the commands is redirected from '/dev/null', so that a command cannot consume the following commands of the batch.
+ * In exec channels, a command with an input, like the sudo password, gets only its own line of input.
+ *
+ * @author JogaSingh
+ *
+ */
+class BatchExecutor {
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final long OPEN_TIMEOUT_MS = 9000;
+	// octal escapes are understood by every POSIX printf, '\x' is a bash extension and exec channels may run in 'sh'
+	private static final String START_MARKER = "printf '\\035\\002%d\\037' ";
+	private static final String END_MARKER = " ; printf '\\035\\036%d\\037' $?";
+	// shell variable holding the input line of one command, 'read' and 'printf' are builtins, not visible in 'ps'
+	private static final String INPUT_VAR = "ssh_batch_input";
+	private SshSession session;
+
+	public BatchExecutor(SshSession session) {
+		this.session = session;
+	}
+
+	/**
+	 * Executes the batch in the shell of the session.
+	 */
+	public List<CommandResult> execInShell(List<SshCommand> cmds) throws SshSessionlException {
+		StringBuilder batch = new StringBuilder();
+		for (int i = 0; i < cmds.size(); i++) {
+			// the command is closed by a new line, so that a trailing '&' or comment does not swallow the end marker
+			batch.append(getStartMarker(i)).append("{ ").append(cmds.get(i).getCommandLine()).append("\n} </dev/null").append(END_MARKER).append('\n');
+		}
+		// on timeout the shell channel is closed, which ends the blocking read below. The handler must not block, the
+		// session is closed by this thread
+		BatchDemultiplexer demux = new BatchDemultiplexer(cmds, () -> session.abortShell());
+		InputStream in = session.getShell().getInvertedOut();
+		OutputStream out = session.getShell().getInvertedIn();
+		byte[] buf = new byte[READ_BUFFER_SIZE];
+		try {
+			out.write(batch.toString().getBytes());
+			out.flush();
+			demux.start();
+			while (!demux.isComplete() && demux.getError() == null) {
+				int len = in.read(buf, 0, buf.length);
+				if (len == -1) {
+					break;
+				}
+				demux.write(buf, 0, len);
+			}
+		} catch (IOException e) {
+			if (demux.getError() != null) {
+				session.close();
+			}
+			throw new SshSessionlException(demux.getError() != null ? demux.getError() : e.getMessage(), e);
+		} finally {
+			demux.stop();
+		}
+		if (demux.getError() != null) {
+			session.close();
+		}
+		// the prompts after the last command are skipped by the start marker of the next command
+		return getResults(demux, cmds.size(), null);
+	}
+
+	/**
+	 * Executes the batch as one script in an exec channel. Standard error of every command is redirected to its output.
+	 *
+	 * @param cmds   - commands of the batch
+	 * @param inputs - one line of standard input of each command, e.g. the sudo password. Commands with 'null' input
+	 *               read from '/dev/null'. A command reading more than the line gets end of file, it cannot read the
+	 *               input of the following commands.
+	 */
+	public List<CommandResult> execInChannel(List<SshCommand> cmds, List<String> inputs) throws SshSessionlException {
+		StringBuilder script = new StringBuilder();
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < cmds.size(); i++) {
+			script.append(getStartMarker(i));
+			if (inputs.get(i) != null) {
+				// the line is taken from the channel input by the script, and piped to the command alone
+				input.append(inputs.get(i)).append('\n');
+				script.append("IFS= read -r ").append(INPUT_VAR).append(" ; { printf '%s\\n' \"$").append(INPUT_VAR).append("\" | ");
+			} else {
+				script.append("{ ");
+			}
+			script.append(cmds.get(i).getCommandLine()).append("\n} </dev/null 2>&1").append(END_MARKER);
+			if (inputs.get(i) != null) {
+				script.append(" ; unset ").append(INPUT_VAR);
+			}
+			script.append('\n');
+		}
+		ChannelExec channel = null;
+		try {
+			channel = session.getClientSession().createExecChannel(script.toString());
+			ChannelExec execChannel = channel;
+			BatchDemultiplexer demux = new BatchDemultiplexer(cmds, () -> execChannel.close(true));
+			ByteArrayOutputStream err = new ByteArrayOutputStream();
+			channel.setOut(demux);
+			channel.setErr(err);
+			channel.open().verify(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			demux.start();
+			OutputStream stdin = channel.getInvertedIn();
+			if (input.length() > 0) {
+				stdin.write(input.toString().getBytes());
+				stdin.flush();
+			}
+			stdin.close();
+			try {
+				channel.waitFor(EnumSet.of(ClientChannelEvent.CLOSED), 0L);
+			} finally {
+				demux.stop();
+			}
+			return getResults(demux, cmds.size(), err.size() > 0 ? new String(err.toByteArray(), SshHelper.UTF8).trim() : null);
+		} catch (IOException | IllegalStateException e) {
+			// IllegalStateException is thrown when the session is being closed
+			throw new SshSessionlException("Exec channel error: " + e.getMessage(), e);
+		} finally {
+			if (channel != null) {
+				channel.close(false);
+			}
+		}
+	}
+
+	private static List<CommandResult> getResults(BatchDemultiplexer demux, int total, String errorOutput) throws SshSessionlException {
+		if (demux.getError() != null) {
+			throw new SshSessionlException(demux.getError());
+		}
+		if (!demux.isComplete()) {
+			throw new SshSessionlException("Batch ended after " + demux.getResults().size() + " of " + total + " commands" + (errorOutput != null ? ": " + errorOutput : ""));
+		}
+		return demux.getResults();
+	}
+
+	private static String getStartMarker(int index) {
+		return START_MARKER + index + " ; ";
+	}
+}
@@ -0,0 +1,126 @@
+package com.thetechnovator.ssh;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of channels used at the same time by asynchronous commands of a session. Commands beyond the limit
+ * are queued and started when a running one completes. No thread waits for a free channel.
+ * 
+ * @author JogaSingh
+ *
+ */
+class ChannelDispatcher {
+	private final int maxChannels;
+	private final Queue<Pending<?>> queue = new ArrayDeque<>();
+	private int running = 0;
+	private boolean closed = false;
+
+	ChannelDispatcher(int maxChannels) {
+		this.maxChannels = maxChannels;
+	}
+
+	/**
+	 * Starts the task right away when a channel is free, otherwise when one becomes free.
+	 * 
+	 * @param task - starts the command and returns its future. Must not block.
+	 * @return future completed with the result of the task
+	 */
+	<T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+		Pending<T> pending = new Pending<>(task);
+		synchronized (this) {
+			if (closed) {
+				pending.result.completeExceptionally(new SshSessionlException("Session is closed"));
+				return pending.result;
+			}
+			if (running >= maxChannels) {
+				queue.add(pending);
+				return pending.result;
+			}
+			running++;
+		}
+		run(pending);
+		return pending.result;
+	}
+
+	/**
+	 * Starts the command and the queued ones following it. Tasks which complete right away, e.g. because the session
+	 * dropped, are handled in this loop instead of recursively, so that a long queue does not overflow the stack.
+	 */
+	private void run(Pending<?> pending) {
+		while (pending != null) {
+			pending = start(pending);
+		}
+	}
+
+	/**
+	 * @return the next command to start when the task completed right away, otherwise 'null'
+	 */
+	private <T> Pending<?> start(Pending<T> pending) {
+		CompletableFuture<T> future;
+		try {
+			future = pending.task.get();
+		} catch (RuntimeException e) {
+			future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+		}
+		if (future.isDone()) {
+			future.whenComplete((value, error) -> complete(pending, value, error));
+			return next();
+		}
+		future.whenComplete((value, error) -> {
+			complete(pending, value, error);
+			run(next());
+		});
+		return null;
+	}
+
+	private static <T> void complete(Pending<T> pending, T value, Throwable error) {
+		if (error != null) {
+			pending.result.completeExceptionally(error);
+		} else {
+			pending.result.complete(value);
+		}
+	}
+
+	/**
+	 * Takes the next queued command, or frees the channel when there is none.
+	 */
+	private Pending<?> next() {
+		synchronized (this) {
+			Pending<?> pending = queue.poll();
+			if (pending == null) {
+				running--;
+			}
+			return pending;
+		}
+	}
+
+	/**
+	 * Fails the queued commands. Running commands are ended by closing the session.
+	 */
+	void close() {
+		List<Pending<?>> dropped;
+		synchronized (this) {
+			closed = true;
+			dropped = new ArrayList<>(queue);
+			queue.clear();
+		}
+		for (Pending<?> pending : dropped) {
+			pending.result.completeExceptionally(new SshSessionlException("Session is closed"));
+		}
+	}
+
+	private static final class Pending<T> {
+		private final Supplier<CompletableFuture<T>> task;
+		private final CompletableFuture<T> result = new CompletableFuture<>();
+
+		private Pending(Supplier<CompletableFuture<T>> task) {
+			this.task = task;
+		}
+	}
+}
@@ -7,9 +7,8 @@ public class CommandExecutor extends AbstractCommandExecutor{
 	}
 	public int exec(SshCommand cmd) throws SshSessionlException {
 		SshInput2OutputPipe out = new SshInput2OutputPipe(cmd, this.getSession());
-		String realCmd=getCommandWithEndMarker(cmd.getCommandLine());
-		//first flush any previous buffer
-		out.flushBufferQuiet(out.getSession().getShell().getInvertedOut());
+		//anything left over from previous commands, like the prompt, is skipped up to the start marker
+		String realCmd=getCommandWithMarkers(cmd.getCommandLine());
 		sendCommand(realCmd);
 		return out.readCommandOutput(realCmd);
 	}
@@ -0,0 +1,23 @@
+package com.thetechnovator.ssh;
+
+/**
+ * Receives the output of an asynchronously executed command as it arrives from the channel.
+ * 
+ * Methods are called on the I/O threads of the SSH client. They must return quickly and must not block, otherwise all
+ * sessions sharing the client are stalled. The buffer is only valid for the duration of the call.
+ * 
+ * @author JogaSingh
+ *
+ * @see SshSession#execAsync(SshCommand, CommandOutputListener)
+ */
+public interface CommandOutputListener {
+	/**
+	 * A chunk of standard output.
+	 */
+	void onOutput(byte[] buf, int off, int len);
+
+	/**
+	 * A chunk of standard error.
+	 */
+	void onError(byte[] buf, int off, int len);
+}
@@ -0,0 +1,42 @@
+package com.thetechnovator.ssh;
+
+/**
+ * Exit status and output of one command of a batch.
+ *
+ * @author JogaSingh
+ *
+ */
+public class CommandResult {
+	private SshCommand command;
+	private int exitStatus;
+	private String output;
+
+	public CommandResult(SshCommand command, int exitStatus, String output) {
+		super();
+		this.command = command;
+		this.exitStatus = exitStatus;
+		this.output = output;
+	}
+
+	public SshCommand getCommand() {
+		return command;
+	}
+
+	public int getExitStatus() {
+		return exitStatus;
+	}
+
+	/**
+	 * Output of the command. It is only kept when the command has no output stream of its own, otherwise it is written to
+	 * that stream and 'null' is returned.
+	 *
+	 * @return
+	 */
+	public String getOutput() {
+		return output;
+	}
+
+	public boolean isFailed() {
+		return exitStatus != 0;
+	}
+}
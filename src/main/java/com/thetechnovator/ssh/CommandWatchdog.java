@@ -0,0 +1,122 @@
+package com.thetechnovator.ssh;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces the maximum execution time and the inactivity timeout of a running command.
+ * 
+ * All watchdogs share one scheduler thread. Nothing is polled: the execution deadline is scheduled once, and the
+ * inactivity check is scheduled for the earliest moment it could expire. When it runs and output has been received in
+ * the meantime, it is simply rescheduled for the new expiry. Recording activity is a single volatile write.
+ * 
+ * @author JogaSingh
+ *
+ */
+final class CommandWatchdog {
+	private static final ScheduledThreadPoolExecutor SCHEDULER = createScheduler();
+
+	private final SshCommand cmd;
+	private final TimeoutHandler handler;
+	private volatile long lastActivityTime = System.currentTimeMillis();
+	private volatile boolean inactivitySuspended = false;
+	private ScheduledFuture<?> executionCheck;
+	private ScheduledFuture<?> inactivityCheck;
+	private boolean stopped = false;
+
+	interface TimeoutHandler {
+		/**
+		 * Called once on the scheduler thread when a timeout expired. Must not block.
+		 */
+		void onTimeout(String message);
+	}
+
+	private CommandWatchdog(SshCommand cmd, TimeoutHandler handler) {
+		this.cmd = cmd;
+		this.handler = handler;
+	}
+
+	/**
+	 * Starts watching the command with its maximum execution and inactivity times.
+	 */
+	static CommandWatchdog start(SshCommand cmd, TimeoutHandler handler) {
+		CommandWatchdog watchdog = new CommandWatchdog(cmd, handler);
+		synchronized (watchdog) {
+			watchdog.executionCheck = SCHEDULER.schedule(watchdog::executionTimeout, cmd.getMaxExecutionTimeMs(), TimeUnit.MILLISECONDS);
+			watchdog.inactivityCheck = SCHEDULER.schedule(watchdog::checkInactivity, cmd.getMaxInactivityTimeMs(), TimeUnit.MILLISECONDS);
+		}
+		return watchdog;
+	}
+
+	/**
+	 * Records that the command has written some output.
+	 */
+	void touch() {
+		lastActivityTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Suspends the inactivity timeout while the output is not read, because the reader is busy with what it got. The
+	 * command cannot write then, so this is not its inactivity.
+	 */
+	void suspendInactivity() {
+		inactivitySuspended = true;
+	}
+
+	/**
+	 * Resumes the inactivity timeout, counting from now.
+	 */
+	void resumeInactivity() {
+		lastActivityTime = System.currentTimeMillis();
+		inactivitySuspended = false;
+	}
+
+	/**
+	 * Stops watching, to be called when the command has completed.
+	 */
+	synchronized void stop() {
+		stopped = true;
+		executionCheck.cancel(false);
+		inactivityCheck.cancel(false);
+	}
+
+	private void executionTimeout() {
+		timeout("Max Exection Timeout: Command '" + cmd.getCommandLine() + "' did not complete in " + Utils.msToNamedTimeInterval(cmd.getMaxExecutionTimeMs()));
+	}
+
+	private void checkInactivity() {
+		long remaining = inactivitySuspended ? cmd.getMaxInactivityTimeMs() : lastActivityTime + cmd.getMaxInactivityTimeMs() - System.currentTimeMillis();
+		if (remaining <= 0) {
+			timeout("Inactivity Timeout: Command '" + cmd.getCommandLine() + "' did not write anything to console in the last "
+					+ Utils.msToNamedTimeInterval(cmd.getMaxInactivityTimeMs()));
+			return;
+		}
+		synchronized (this) {
+			if (!stopped) {
+				inactivityCheck = SCHEDULER.schedule(this::checkInactivity, remaining, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private void timeout(String message) {
+		synchronized (this) {
+			if (stopped) {
+				return;
+			}
+			stop();
+		}
+		handler.onTimeout(message);
+	}
+
+	private static ScheduledThreadPoolExecutor createScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "ssh-command-watchdog");
+			t.setDaemon(true);
+			return t;
+		});
+		// cancelled checks of completed commands must not pile up in the queue
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+}
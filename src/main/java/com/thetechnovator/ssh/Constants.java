@@ -5,8 +5,11 @@ public interface Constants {
 	int FAILURE=1;
 	int CR=13;
 	int LF=10;
+	int START_OF_TEXT = 2;
+	int ACKNOWLEDGE = 6;
 	int END_OF_TEXT_GROUP = 29;
 	int END_OF_TEXT_RECORD = 30;
 	int END_OF_TEXT_UNIT = 31;
+	String CMD_PREFIX = "printf '\\x1D\\x02' ; ";
 	String CMD_SUFFIX = " ; printf '\\x1D\\x1E%d\\x1F' $?";
 }
@@ -0,0 +1,59 @@
+package com.thetechnovator.ssh;
+
+/**
+ * Outcome of a {@link DeltaTransfer}: how many blocks of the file differed and had to be sent.
+ *
+ * @author JogaSingh
+ *
+ */
+public class DeltaReport {
+	private final long fileSize;
+	private final int blockSize;
+	private final long blocksTotal;
+	private final long blocksTransferred;
+	private final long bytesTransferred;
+
+	DeltaReport(long fileSize, int blockSize, long blocksTotal, long blocksTransferred, long bytesTransferred) {
+		this.fileSize = fileSize;
+		this.blockSize = blockSize;
+		this.blocksTotal = blocksTotal;
+		this.blocksTransferred = blocksTransferred;
+		this.bytesTransferred = bytesTransferred;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public long getBlocksTotal() {
+		return blocksTotal;
+	}
+
+	public long getBlocksTransferred() {
+		return blocksTransferred;
+	}
+
+	/**
+	 * Bytes of file content sent, without the checksums.
+	 */
+	public long getBytesTransferred() {
+		return bytesTransferred;
+	}
+
+	/**
+	 * Part of the file which was sent, from 0 (nothing changed) to 1 (whole file).
+	 */
+	public double getTransferRatio() {
+		return fileSize == 0 ? 0 : (double) bytesTransferred / fileSize;
+	}
+
+	@Override
+	public String toString() {
+		return "DeltaReport [fileSize=" + fileSize + ", blockSize=" + blockSize + ", blocksTransferred=" + blocksTransferred + "/" + blocksTotal
+				+ ", bytesTransferred=" + bytesTransferred + ", transferRatio=" + String.format("%.4f", getTransferRatio()) + "]";
+	}
+}
@@ -0,0 +1,231 @@
+package com.thetechnovator.ssh;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.sshd.client.subsystem.sftp.SftpClient;
+import org.apache.sshd.client.subsystem.sftp.SftpClient.Attributes;
+import org.apache.sshd.client.subsystem.sftp.SftpClient.CloseableHandle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transfers only the blocks of a file which differ between the local and the remote copy, and rebuilds the target in
+ * place. Suited to large files of which only a few blocks change between versions.
+ *
+ * Both copies are cut into blocks at the same offsets and the SHA-256 of each block is compared. The remote checksums
+ * are computed by 'split --filter=sha256sum' (GNU coreutils) in one command, so nothing needs to be installed on the
+ * remote host. Differing blocks are sent with pipelined SFTP requests and the target is cut to the size of the source.
+ * Content inserted or removed in the middle of the file shifts all following blocks, which are then sent as well.
+ *
+ * The target is modified in place: if the transfer fails, it is left partly updated and the transfer has to be
+ * repeated.
+ *
+ * This object can be constructed intuitively using the {@link Builder}.
+ *
+ * @author JogaSingh
+ *
+ */
+public class DeltaTransfer {
+	private static final Logger LOG = LoggerFactory.getLogger(DeltaTransfer.class);
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024; // 1 MB
+
+	private SshSession session;
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+
+	private DeltaTransfer() {
+
+	}
+
+	/**
+	 * Updates the remote file to the content of the local file. The remote file is created if it does not exist.
+	 *
+	 * @param localFile
+	 * @param remotePath
+	 * @return number of blocks and bytes sent
+	 * @throws SshSessionlException
+	 */
+	public DeltaReport upload(File localFile, String remotePath) throws SshSessionlException {
+		List<String> remoteHashes = remoteHashes(remotePath);
+		try (RandomAccessFile file = new RandomAccessFile(localFile, "r");
+				SftpFileOperations sftp = new SftpFileOperations(session);
+				CloseableHandle handle = sftp.getClient().open(remotePath, SftpClient.OpenMode.Write, SftpClient.OpenMode.Create)) {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			List<long[]> ranges = changedRanges(localHashes(channel), remoteHashes, size);
+			LocalFileAccess.Source source = LocalFileAccess.channelSource(channel);
+			for (long[] range : ranges) {
+				sftp.write(handle, range[0], range[1], source);
+			}
+			sftp.getClient().setStat(handle, new Attributes().size(size));
+			return report(remotePath, size, ranges);
+		} catch (IOException e) {
+			throw new SshSessionlException("Error uploading " + localFile + " to " + remotePath + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Updates the local file to the content of the remote file. The local file is created if it does not exist.
+	 *
+	 * @param remotePath
+	 * @param localFile
+	 * @return number of blocks and bytes received
+	 * @throws SshSessionlException
+	 */
+	public DeltaReport download(String remotePath, File localFile) throws SshSessionlException {
+		List<String> remoteHashes = remoteHashes(remotePath);
+		try (RandomAccessFile file = new RandomAccessFile(localFile, "rw");
+				SftpFileOperations sftp = new SftpFileOperations(session);
+				CloseableHandle handle = sftp.getClient().open(remotePath, SftpClient.OpenMode.Read)) {
+			FileChannel channel = file.getChannel();
+			long size = sftp.getClient().stat(handle).getSize();
+			List<long[]> ranges = changedRanges(remoteHashes, localHashes(channel), size);
+			LocalFileAccess.Sink sink = LocalFileAccess.channelSink(channel);
+			for (long[] range : ranges) {
+				sftp.read(handle, range[0], range[1], sink);
+			}
+			channel.truncate(size);
+			channel.force(false);
+			return report(remotePath, size, ranges);
+		} catch (IOException e) {
+			throw new SshSessionlException("Error downloading " + remotePath + " to " + localFile + ": " + e.getMessage(), e);
+		}
+	}
+
+	private DeltaReport report(String remotePath, long size, List<long[]> ranges) {
+		long bytes = 0;
+		long blocks = 0;
+		for (long[] range : ranges) {
+			bytes += range[1];
+			// ranges start at a block boundary
+			blocks += (range[1] + blockSize - 1) / blockSize;
+		}
+		DeltaReport report = new DeltaReport(size, blockSize, (size + blockSize - 1) / blockSize, blocks, bytes);
+		LOG.info(remotePath + ": " + report);
+		return report;
+	}
+
+	/**
+	 * Offsets and lengths of the runs of consecutive source blocks which differ from the target. Blocks beyond the end of
+	 * the target are always different.
+	 */
+	List<long[]> changedRanges(List<String> sourceHashes, List<String> targetHashes, long size) {
+		List<long[]> ranges = new ArrayList<>();
+		long[] current = null;
+		for (int i = 0; i < sourceHashes.size(); i++) {
+			if (i < targetHashes.size() && sourceHashes.get(i).equals(targetHashes.get(i))) {
+				current = null;
+				continue;
+			}
+			long offset = (long) i * blockSize;
+			long length = Math.min(blockSize, size - offset);
+			if (current == null) {
+				current = new long[] { offset, length };
+				ranges.add(current);
+			} else {
+				current[1] += length;
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * SHA-256 of every block of the remote file, empty if the file does not exist.
+	 */
+	private List<String> remoteHashes(String remotePath) throws SshSessionlException {
+		String path = Utils.shellQuote(remotePath);
+		String command = "if [ -f " + path + " ]; then split -b " + blockSize + " --filter=sha256sum -- " + path + "; fi";
+		List<String> hashes = new ArrayList<>();
+		try (OutputLines lines = session.lines(command)) {
+			String line;
+			while ((line = lines.readLine()) != null) {
+				hashes.add(line.substring(0, Math.min(64, line.length())));
+			}
+			int status = lines.getExitStatus();
+			if (status != 0) {
+				throw new SshSessionlException("Error computing the block checksums of " + remotePath + ": " + lines.getErrorOutput().trim());
+			}
+		}
+		return hashes;
+	}
+
+	/**
+	 * SHA-256 of every block of the local file, in the format of 'sha256sum'.
+	 */
+	List<String> localHashes(FileChannel channel) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		List<String> hashes = new ArrayList<>();
+		ByteBuffer buf = ByteBuffer.allocate(blockSize);
+		long position = 0;
+		long size = channel.size();
+		while (position < size) {
+			buf.clear();
+			while (buf.hasRemaining() && position + buf.position() < size) {
+				if (channel.read(buf, position + buf.position()) == -1) {
+					break;
+				}
+			}
+			buf.flip();
+			if (!buf.hasRemaining()) {
+				// the file was cut while it was read
+				break;
+			}
+			position += buf.remaining();
+			digest.update(buf);
+			hashes.add(Utils.toHex(digest.digest()));
+		}
+		return hashes;
+	}
+
+	/**
+	 * Builder for DeltaTransfer
+	 *
+	 * @author JogaSingh
+	 *
+	 */
+	public static class Builder {
+		private DeltaTransfer transfer = new DeltaTransfer();
+
+		public static Builder getInstance() {
+			return new Builder();
+		}
+
+		/**
+		 * Connected session.
+		 */
+		public Builder session(SshSession session) {
+			transfer.session = session;
+			return this;
+		}
+
+		/**
+		 * Size of the compared blocks. Smaller blocks send less of a changed file but need more checksums. Default is 1 MB.
+		 */
+		public Builder blockSize(int blockSize) {
+			if (blockSize < 1) {
+				throw new IllegalArgumentException("blockSize must be at least 1");
+			}
+			transfer.blockSize = blockSize;
+			return this;
+		}
+
+		public DeltaTransfer build() {
+			if (transfer.session == null) {
+				throw new IllegalArgumentException("session is required");
+			}
+			return transfer;
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package com.thetechnovator.ssh;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Brings a remote directory tree up to date with a local one, sending only the files which are missing or different,
+ * like 'rsync -r --times'.
+ *
+ * The remote tree is listed with one 'find' command. A file is considered up to date when its size and modification
+ * time (to the second) are the same, or, with checksums enabled, when its size and SHA-256 are the same. The remote
+ * checksums are computed with 'sha256sum' in as few commands as possible. Changed files are uploaded over several SFTP
+ * channels at the same time and get the modification time of the local file, so that the next sync skips them.
+ *
+ * The remote host needs GNU find and, for checksums, 'sha256sum'. Files are written as the connected user.
+ *
+ * This object can be constructed intuitively using the {@link Builder}.
+ *
+ * @author JogaSingh
+ *
+ */
+public class DirectorySync {
+	private static final Logger LOG = LoggerFactory.getLogger(DirectorySync.class);
+	public static final int DEFAULT_PARALLELISM = 4;
+	// keeps command lines well below the argument limit of the remote host
+	private static final int MAX_ARGS_LENGTH = 64 * 1024;
+
+	private SshSession session;
+	private boolean checksum = false;
+	private boolean deleteExtra = false;
+	private int parallelism = DEFAULT_PARALLELISM;
+
+	private DirectorySync() {
+
+	}
+
+	/**
+	 * Makes the remote directory contain the same files as the local directory. The remote directory is created if
+	 * needed.
+	 *
+	 * @param localDir
+	 * @param remoteDir
+	 * @return what was transferred and deleted
+	 * @throws SshSessionlException
+	 */
+	public SyncReport sync(File localDir, String remoteDir) throws SshSessionlException {
+		long start = System.currentTimeMillis();
+		if (!localDir.isDirectory()) {
+			throw new SshSessionlException("Not a directory: " + localDir);
+		}
+		String root = remoteDir.length() > 1 ? StringUtils.removeEnd(remoteDir, "/") : remoteDir;
+		SyncReport report = new SyncReport();
+		Map<String, File> localFiles = listLocal(localDir);
+		Map<String, RemoteFile> remoteFiles = listRemote(root);
+		report.checked(localFiles.size());
+
+		List<String> changed = new ArrayList<>();
+		List<String> sameSize = new ArrayList<>();
+		for (Map.Entry<String, File> entry : localFiles.entrySet()) {
+			File file = entry.getValue();
+			RemoteFile remote = remoteFiles.get(entry.getKey());
+			if (remote == null || remote.getSize() != file.length()) {
+				changed.add(entry.getKey());
+			} else if (checksum) {
+				sameSize.add(entry.getKey());
+			} else if (remote.getModifiedTimeMillis() / 1000 == file.lastModified() / 1000) {
+				report.skipped(file.length());
+			} else {
+				changed.add(entry.getKey());
+			}
+		}
+		if (!sameSize.isEmpty()) {
+			Map<String, String> remoteHashes = remoteHashes(root, sameSize);
+			for (String path : sameSize) {
+				File file = localFiles.get(path);
+				if (sha256Hex(file).equals(remoteHashes.get(path))) {
+					report.skipped(file.length());
+				} else {
+					changed.add(path);
+				}
+			}
+		}
+		LOG.info("Sync " + localDir + " to " + root + ": " + changed.size() + " of " + localFiles.size() + " files to transfer");
+
+		createDirs(root, changed);
+		upload(localFiles, root, changed, report);
+		if (deleteExtra) {
+			List<String> extra = remoteFiles.keySet().stream().filter(path -> !localFiles.containsKey(path)).collect(Collectors.toList());
+			runForArgs(inDir(root, "rm -f --"), extra, line -> {
+			});
+			extra.forEach(report::deleted);
+		}
+		report.setDurationMs(System.currentTimeMillis() - start);
+		LOG.info(report.toString());
+		return report;
+	}
+
+	/**
+	 * Regular files below the directory, by path relative to it with '/' as separator.
+	 */
+	private static Map<String, File> listLocal(File localDir) throws SshSessionlException {
+		Path base = localDir.toPath();
+		try (Stream<Path> paths = Files.walk(base)) {
+			Map<String, File> files = new TreeMap<>();
+			paths.filter(Files::isRegularFile).forEach(path -> files.put(base.relativize(path).toString().replace(File.separatorChar, '/'), path.toFile()));
+			return files;
+		} catch (IOException e) {
+			throw new SshSessionlException("Error listing " + localDir + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Lists the regular files below the remote directory with their size and modification time, keyed by relative path.
+	 * An empty map is returned if the directory does not exist.
+	 */
+	private Map<String, RemoteFile> listRemote(String root) throws SshSessionlException {
+		String dir = Utils.shellQuote(root);
+		String command = "if [ -d " + dir + " ]; then cd " + dir + " && find . -type f -printf '%s %T@ %P\\n'; fi";
+		Map<String, RemoteFile> files = new HashMap<>();
+		run(command, line -> {
+			String[] tokens = StringUtils.split(line, " ", 3);
+			if (tokens.length < 3 || !StringUtils.isNumeric(tokens[0])) {
+				// e.g. a name with a line feed, the file is sent again
+				LOG.warn("Cannot parse remote file: " + line);
+				return;
+			}
+			long modified = new BigDecimal(tokens[1]).movePointRight(3).longValue();
+			files.put(tokens[2], new RemoteFile(root + "/" + tokens[2], Long.parseLong(tokens[0]), modified, false));
+		});
+		return files;
+	}
+
+	private Map<String, String> remoteHashes(String root, List<String> paths) throws SshSessionlException {
+		Map<String, String> hashes = new HashMap<>();
+		runForArgs(inDir(root, "sha256sum --"), paths, line -> {
+			// '<hash>  <path>', names with special characters are escaped and start with a backslash
+			if (line.length() > 66 && line.charAt(0) != '\\') {
+				hashes.put(line.substring(66), line.substring(0, 64));
+			}
+		});
+		return hashes;
+	}
+
+	private void createDirs(String root, List<String> changed) throws SshSessionlException {
+		if (changed.isEmpty()) {
+			return;
+		}
+		TreeSet<String> dirs = new TreeSet<>();
+		for (String path : changed) {
+			if (path.indexOf('/') > 0) {
+				dirs.add(StringUtils.substringBeforeLast(path, "/"));
+			}
+		}
+		String createRoot = "mkdir -p -- " + Utils.shellQuote(root);
+		if (dirs.isEmpty()) {
+			run(createRoot, line -> {
+			});
+			return;
+		}
+		runForArgs(createRoot + " && " + inDir(root, "mkdir -p --"), new ArrayList<>(dirs), line -> {
+		});
+	}
+
+	/**
+	 * Uploads the files with 'parallelism' workers, each with its own SFTP channel, taking the files from a shared queue.
+	 * After the first failure no more files are started.
+	 */
+	private void upload(Map<String, File> localFiles, String root, List<String> changed, SyncReport report) throws SshSessionlException {
+		if (changed.isEmpty()) {
+			return;
+		}
+		ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>(changed);
+		AtomicBoolean failed = new AtomicBoolean();
+		int workers = Math.min(parallelism, changed.size());
+		ExecutorService executor = Executors.newFixedThreadPool(workers, r -> {
+			Thread t = new Thread(r, "ssh-directory-sync");
+			t.setDaemon(true);
+			return t;
+		});
+		List<Future<Void>> futures = new ArrayList<>();
+		for (int i = 0; i < workers; i++) {
+			futures.add(executor.submit(() -> {
+				try (SftpFileOperations sftp = new SftpFileOperations(session)) {
+					String path;
+					while (!failed.get() && (path = queue.poll()) != null) {
+						File file = localFiles.get(path);
+						sftp.upload(file, root + "/" + path);
+						sftp.setModifiedTime(root + "/" + path, file.lastModified());
+						report.transferred(path, file.length());
+					}
+				} catch (SshSessionlException | RuntimeException e) {
+					failed.set(true);
+					throw e;
+				}
+				return null;
+			}));
+		}
+		executor.shutdown();
+		SshSessionlException error = null;
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (error == null) {
+					error = new SshSessionlException("Sync failed after " + report.getTransferredFiles().size() + " files: " + e.getCause().getMessage(), e.getCause());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failed.set(true);
+				error = new SshSessionlException("Interrupted while syncing", e);
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private static String inDir(String root, String command) {
+		return "cd " + Utils.shellQuote(root) + " && " + command;
+	}
+
+	/**
+	 * Runs the command with the paths as arguments, in as many commands as the length of the command line requires.
+	 */
+	private void runForArgs(String prefix, List<String> paths, Consumer<String> handler) throws SshSessionlException {
+		StringBuilder cmd = new StringBuilder(prefix);
+		int count = 0;
+		for (String path : paths) {
+			String arg = Utils.shellQuote(path);
+			if (count > 0 && cmd.length() + arg.length() + 1 > MAX_ARGS_LENGTH) {
+				run(cmd.toString(), handler);
+				cmd.setLength(prefix.length());
+				count = 0;
+			}
+			cmd.append(' ').append(arg);
+			count++;
+		}
+		if (count > 0) {
+			run(cmd.toString(), handler);
+		}
+	}
+
+	private void run(String command, Consumer<String> handler) throws SshSessionlException {
+		try (OutputLines lines = session.lines(command)) {
+			String line;
+			while ((line = lines.readLine()) != null) {
+				handler.accept(line);
+			}
+			int status = lines.getExitStatus();
+			if (status != 0) {
+				throw new SshSessionlException("Command '" + StringUtils.abbreviate(command, 200) + "' failed with status " + status + ": " + lines.getErrorOutput().trim());
+			}
+		}
+	}
+
+	private static String sha256Hex(File file) throws SshSessionlException {
+		try {
+			return Utils.sha256Hex(file);
+		} catch (IOException e) {
+			throw new SshSessionlException("Error reading " + file + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Builder for DirectorySync
+	 *
+	 * @author JogaSingh
+	 *
+	 */
+	public static class Builder {
+		private DirectorySync sync = new DirectorySync();
+
+		public static Builder getInstance() {
+			return new Builder();
+		}
+
+		/**
+		 * Connected session, every upload worker opens its own SFTP channel on it.
+		 */
+		public Builder session(SshSession session) {
+			sync.session = session;
+			return this;
+		}
+
+		/**
+		 * Compare files of the same size by their SHA-256 instead of their modification time. Default is 'false'.
+		 */
+		public Builder checksum(boolean checksum) {
+			sync.checksum = checksum;
+			return this;
+		}
+
+		/**
+		 * Delete remote files which do not exist locally. Default is 'false'.
+		 */
+		public Builder deleteExtra(boolean deleteExtra) {
+			sync.deleteExtra = deleteExtra;
+			return this;
+		}
+
+		/**
+		 * Number of files uploaded at the same time. Default is {@value DirectorySync#DEFAULT_PARALLELISM}.
+		 */
+		public Builder parallelism(int parallelism) {
+			if (parallelism < 1) {
+				throw new IllegalArgumentException("parallelism must be at least 1");
+			}
+			sync.parallelism = parallelism;
+			return this;
+		}
+
+		public DirectorySync build() {
+			if (sync.session == null) {
+				throw new IllegalArgumentException("session is required");
+			}
+			return sync;
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package com.thetechnovator.ssh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.EnumSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.sshd.client.channel.ChannelExec;
+import org.apache.sshd.client.channel.ClientChannelEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes a command in its own 'exec' channel. Standard output and error are received separately and the exit code is
+ * taken from the 'exit-status' message of the channel, so no echo skipping or marker parsing is needed.
+ *
+ * @author JogaSingh
+ *
+ */
+public class ExecChannelExecutor {
+	private static final Logger LOG = LoggerFactory.getLogger(ExecChannelExecutor.class);
+	private static final long OPEN_TIMEOUT_MS = 9000;
+	private SshSession session;
+
+	public ExecChannelExecutor(SshSession session) {
+		this.session = session;
+	}
+
+	public int exec(SshCommand cmd) throws SshSessionlException {
+		return exec(cmd, null);
+	}
+
+	/**
+	 * Executes the command and waits for it to complete.
+	 *
+	 * @param cmd   - command to be executed
+	 * @param input - written to the standard input of the command before closing it, can be null.
+	 * @return exit status of the command
+	 * @throws SshSessionlException
+	 */
+	public int exec(SshCommand cmd, String input) throws SshSessionlException {
+		String cmdLine = cmd.getCommandLine();
+		ActivityOutputStream out = new ActivityOutputStream(cmd.isWriteOutputToConsole() ? System.out : null, cmd.getOutputStream());
+		OutputStream errTarget = cmd.getErrorStream() != null ? cmd.getErrorStream() : cmd.getOutputStream();
+		ActivityOutputStream err = new ActivityOutputStream(cmd.isWriteOutputToConsole() ? System.err : null, errTarget);
+		if (cmd.isWriteOutputToConsole()) {
+			System.out.println(cmdLine);
+		}
+		ChannelExec channel = null;
+		try {
+			channel = session.getClientSession().createExecChannel(cmdLine);
+			channel.setOut(out);
+			channel.setErr(err);
+			channel.open().verify(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			// standard input is closed right away so that the command does not wait for it
+			OutputStream stdin = channel.getInvertedIn();
+			if (input != null) {
+				stdin.write((input + "\n").getBytes());
+				stdin.flush();
+			}
+			stdin.close();
+			return waitForExit(channel, cmd, out, err);
+		} catch (IOException | IllegalStateException e) {
+			// IllegalStateException is thrown when the session is being closed
+			throw new SshSessionlException("Exec channel error: " + e.getMessage(), e);
+		} finally {
+			if (channel != null) {
+				channel.close(false);
+			}
+		}
+	}
+
+	/**
+	 * Starts the command and returns without waiting for it. Output is pushed to the listener, the console and the
+	 * command's streams by the I/O threads of the SSH client as it arrives, and the future is completed when the channel
+	 * closes. Timeouts are enforced by a {@link CommandWatchdog}, no thread is blocked while the command runs.
+	 *
+	 * @param cmd      - command to be executed
+	 * @param input    - written to the standard input of the command before closing it, can be null.
+	 * @param listener - receives the output chunks, can be null.
+	 * @return future completed with the exit status, or exceptionally with a {@link SshSessionlException}
+	 */
+	public CompletableFuture<Integer> execAsync(SshCommand cmd, String input, CommandOutputListener listener) {
+		CompletableFuture<Integer> future = new CompletableFuture<>();
+		String cmdLine = cmd.getCommandLine();
+		ChannelExec channel;
+		try {
+			channel = session.getClientSession().createExecChannel(cmdLine);
+		} catch (IOException | IllegalStateException e) {
+			future.completeExceptionally(new SshSessionlException("Exec channel error: " + e.getMessage(), e));
+			return future;
+		}
+		ActivityOutputStream out = new ActivityOutputStream(cmd.isWriteOutputToConsole() ? System.out : null, cmd.getOutputStream(), listener, false);
+		OutputStream errTarget = cmd.getErrorStream() != null ? cmd.getErrorStream() : cmd.getOutputStream();
+		ActivityOutputStream err = new ActivityOutputStream(cmd.isWriteOutputToConsole() ? System.err : null, errTarget, listener, true);
+		channel.setOut(out);
+		channel.setErr(err);
+		CommandWatchdog watchdog = CommandWatchdog.start(cmd, message -> {
+			future.completeExceptionally(new SshSessionlException(message));
+			channel.close(true);
+		});
+		out.setWatchdog(watchdog);
+		err.setWatchdog(watchdog);
+		channel.addCloseFutureListener(closed -> {
+			watchdog.stop();
+			Integer status = channel.getExitStatus();
+			if (status == null) {
+				LOG.warn("Command '" + cmdLine + "' did not return an exit status. Exit signal: " + channel.getExitSignal());
+				status = Constants.FAILURE;
+			}
+			future.complete(status);
+		});
+		try {
+			channel.open().addListener(opened -> {
+				if (!opened.isOpened()) {
+					Throwable e = opened.getException();
+					future.completeExceptionally(new SshSessionlException("Exec channel error: " + (e != null ? e.getMessage() : "not opened"), e));
+					channel.close(true);
+					return;
+				}
+				try {
+					OutputStream stdin = channel.getInvertedIn();
+					if (input != null) {
+						stdin.write((input + "\n").getBytes());
+						stdin.flush();
+					}
+					stdin.close();
+				} catch (IOException e) {
+					future.completeExceptionally(new SshSessionlException("Exec channel error: " + e.getMessage(), e));
+					channel.close(true);
+				}
+			});
+		} catch (IOException e) {
+			future.completeExceptionally(new SshSessionlException("Exec channel error: " + e.getMessage(), e));
+			channel.close(true);
+		}
+		return future;
+	}
+
+	/**
+	 * Starts the command and returns its output for reading line by line. The standard output is not redirected, it
+	 * stays in the channel, so the server is only allowed to send as much as the channel window permits until the
+	 * caller reads it.
+	 *
+	 * @param cmd   - command to be executed. Its output stream and console options are ignored.
+	 * @param input - written to the standard input of the command before closing it, can be null.
+	 * @return output which must be closed by the caller
+	 * @throws SshSessionlException
+	 */
+	public OutputLines lines(SshCommand cmd, String input) throws SshSessionlException {
+		ChannelExec channel = null;
+		try {
+			String commandLine = cmd.isCompressOutput() ? gzipOutput(cmd.getCommandLine()) : cmd.getCommandLine();
+			channel = session.getClientSession().createExecChannel(commandLine);
+			OutputLines.BoundedOutputStream err = new OutputLines.BoundedOutputStream();
+			channel.setErr(err);
+			channel.open().verify(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			OutputStream stdin = channel.getInvertedIn();
+			if (input != null) {
+				stdin.write((input + "\n").getBytes());
+				stdin.flush();
+			}
+			stdin.close();
+			AtomicReference<String> timeout = new AtomicReference<>();
+			ChannelExec execChannel = channel;
+			CommandWatchdog watchdog = CommandWatchdog.start(cmd, message -> {
+				timeout.set(message);
+				execChannel.close(true);
+			});
+			return new OutputLines(channel, cmd, watchdog, timeout, err);
+		} catch (IOException | IllegalStateException e) {
+			if (channel != null) {
+				channel.close(true);
+			}
+			throw new SshSessionlException("Exec channel error: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Pipes the standard output through 'gzip' and still exits with the status of the command. The status is passed
+	 * out of the pipe on file descriptor 3 to the last command of the pipeline, since a POSIX shell has no 'pipefail'.
+	 * The command runs in a subshell of its own, so that an 'exit' in it does not skip passing the status.
+	 */
+	static String gzipOutput(String commandLine) {
+		return "exec 4>&1; { { ( " + commandLine + "\n ); echo $? >&3; } | gzip -c >&4; } 3>&1 | { read s; exit ${s:-1}; }";
+	}
+
+	private int waitForExit(ChannelExec channel, SshCommand cmd, ActivityOutputStream out, ActivityOutputStream err) throws SshSessionlException {
+		AtomicReference<String> timeout = new AtomicReference<>();
+		CommandWatchdog watchdog = CommandWatchdog.start(cmd, message -> {
+			timeout.set(message);
+			channel.close(true);
+		});
+		out.setWatchdog(watchdog);
+		err.setWatchdog(watchdog);
+		try {
+			// the watchdog closes the channel on timeout, so waiting for close is enough
+			channel.waitFor(EnumSet.of(ClientChannelEvent.CLOSED), 0L);
+		} finally {
+			watchdog.stop();
+		}
+		if (timeout.get() != null) {
+			throw new SshSessionlException(timeout.get());
+		}
+		Integer status = channel.getExitStatus();
+		if (status == null) {
+			LOG.warn("Command '" + cmd.getCommandLine() + "' did not return an exit status. Exit signal: " + channel.getExitSignal());
+			return Constants.FAILURE;
+		}
+		return status;
+	}
+
+	/**
+	 * Writes the channel data to the console, the command's output stream and the listener, and reports the activity to
+	 * the watchdog.
+	 */
+	private static final class ActivityOutputStream extends OutputStream {
+		private PrintStream console;
+		private OutputStream out;
+		private CommandOutputListener listener;
+		private boolean isError;
+		private CommandWatchdog watchdog;
+
+		public ActivityOutputStream(PrintStream console, OutputStream out) {
+			this.console = console;
+			this.out = out;
+		}
+
+		public ActivityOutputStream(PrintStream console, OutputStream out, CommandOutputListener listener, boolean isError) {
+			this(console, out);
+			this.listener = listener;
+			this.isError = isError;
+		}
+
+		public void setWatchdog(CommandWatchdog watchdog) {
+			this.watchdog = watchdog;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (watchdog != null) {
+				watchdog.touch();
+			}
+			if (console != null) {
+				console.write(b, off, len);
+			}
+			if (out != null) {
+				out.write(b, off, len);
+			}
+			if (listener != null) {
+				if (isError) {
+					listener.onError(b, off, len);
+				} else {
+					listener.onOutput(b, off, len);
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (out != null) {
+				out.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			// the command's output stream is owned by the caller
+			flush();
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.thetechnovator.ssh;
+
+/**
+ * How the commands of a {@link SshSession} are executed on the remote host.
+ * 
+ * @author JogaSingh
+ *
+ */
+public enum ExecutionMode {
+	/**
+	 * All commands are typed into one interactive shell. Shell state like 'su', 'cd' or exported variables is kept
+	 * between the commands. Exit code is taken from a marker appended to each command.
+	 */
+	SHELL,
+	/**
+	 * Each command runs in its own 'exec' channel without a terminal. Standard output and error are separate and the exit
+	 * code comes from the channel's 'exit-status' message. Much faster for short commands, but no state is kept between
+	 * the commands and 'su'/'exit' are not supported.
+	 */
+	EXEC_CHANNEL
+}
@@ -0,0 +1,343 @@
+package com.thetechnovator.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parses file listings of 'find' and 'ls' while they are read. The bytes of every record are scanned once: sizes and
+ * times are read in place, and only the path becomes a String.
+ *
+ * Listings of 'find' are printed with {@link #FIND_PRINTF}. Every record ends with a NUL, so that paths with spaces,
+ * newlines or any other character come through unchanged. Listings of 'ls -l --time-style=full-iso' are read line by
+ * line, the name being the rest of the line, so that spaces are kept; names with newlines cannot be told apart there.
+ * Records which cannot be parsed, like the 'total' line of 'ls' or error messages mixed into the output, are skipped.
+ *
+ * The parser has no state of its own and can be used by many threads at the same time.
+ *
+ * @author JogaSingh
+ *
+ */
+final class FileListParser {
+	private static final Logger LOG = LoggerFactory.getLogger(FileListParser.class);
+	/**
+	 * Options of 'find' printing '&lt;type&gt; &lt;size&gt; &lt;seconds&gt; &lt;path&gt;' and a NUL for every entry.
+	 */
+	static final String FIND_PRINTF = " -printf '%y %s %T@ %p\\0'";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String LINK_ARROW = " -> ";
+
+	/**
+	 * Receives the entries of a listing of 'find'.
+	 */
+	@FunctionalInterface
+	interface FindHandler {
+		/**
+		 * @param type     - type letter of 'find -printf %y', e.g. 'f', 'd' or 'l'
+		 * @param size
+		 * @param modified - milliseconds since the epoch
+		 * @param path
+		 */
+		void accept(char type, long size, long modified, String path);
+	}
+
+	private FileListParser() {
+
+	}
+
+	/**
+	 * Parses the output of 'find ... {@link #FIND_PRINTF}' into files.
+	 *
+	 * @return number of files passed to the consumer
+	 */
+	static long parseFind(InputStream in, Consumer<RemoteFile> consumer) throws IOException {
+		return parseFind(in, (type, size, modified, path) -> consumer.accept(new RemoteFile(path, size, modified, type == 'd')));
+	}
+
+	/**
+	 * Parses the output of 'find ... {@link #FIND_PRINTF}'.
+	 *
+	 * @return number of entries passed to the handler
+	 */
+	static long parseFind(InputStream in, FindHandler handler) throws IOException {
+		RecordReader reader = new RecordReader(in, (byte) 0);
+		long count = 0;
+		int length;
+		while ((length = reader.next()) >= 0) {
+			if (parseFindRecord(reader.record, length, handler)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Parses the output of 'ls -l --time-style=full-iso' into files. Symbolic links are returned with their own name,
+	 * without the target.
+	 *
+	 * @return number of files passed to the consumer
+	 */
+	static long parseLs(InputStream in, Consumer<RemoteFile> consumer) throws IOException {
+		RecordReader reader = new RecordReader(in, (byte) '\n');
+		long count = 0;
+		int length;
+		while ((length = reader.next()) >= 0) {
+			RemoteFile file = parseLsLine(reader.record, length);
+			if (file != null) {
+				consumer.accept(file);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Parses '&lt;type&gt; &lt;size&gt; &lt;seconds&gt;[.&lt;fraction&gt;] &lt;path&gt;'.
+	 */
+	static boolean parseFindRecord(byte[] b, int length, FindHandler handler) {
+		if (length < 7 || b[1] != ' ') {
+			skip(b, length);
+			return false;
+		}
+		int i = 2;
+		int end = skipDigits(b, i, length);
+		if (end == i || end >= length || b[end] != ' ') {
+			skip(b, length);
+			return false;
+		}
+		long size = toLong(b, i, end);
+		i = end + 1;
+		boolean negative = b[i] == '-';
+		if (negative) {
+			i++;
+		}
+		end = skipDigits(b, i, length);
+		if (end == i) {
+			skip(b, length);
+			return false;
+		}
+		long millis = toLong(b, i, end) * 1000;
+		i = end;
+		if (i < length && b[i] == '.') {
+			end = skipDigits(b, ++i, length);
+			// milliseconds are the first three digits of the fraction
+			for (int scale = 100; scale > 0; scale /= 10, i++) {
+				if (i < end) {
+					millis += (b[i] - '0') * scale;
+				}
+			}
+			i = end;
+		}
+		if (i >= length || b[i] != ' ') {
+			skip(b, length);
+			return false;
+		}
+		handler.accept((char) b[0], size, negative ? -millis : millis, new String(b, i + 1, length - i - 1, SshHelper.UTF8));
+		return true;
+	}
+
+	/**
+	 * Parses '&lt;mode&gt; &lt;links&gt; &lt;owner&gt; &lt;group&gt; &lt;size&gt; &lt;yyyy-MM-dd&gt;
+	 * &lt;HH:mm:ss.fraction&gt; &lt;zone&gt; &lt;name&gt;'. Device files show 'major, minor' instead of the size and
+	 * get the size 0.
+	 *
+	 * @return the file, or 'null' if the line is not a file
+	 */
+	static RemoteFile parseLsLine(byte[] b, int length) {
+		// lines of a terminal end with CR LF
+		int end = length > 0 && b[length - 1] == '\r' ? length - 1 : length;
+		if (end < 10 || "-dlcbps".indexOf(b[0]) < 0) {
+			skip(b, end);
+			return null;
+		}
+		// mode, links, owner and group
+		int i = 0;
+		for (int field = 0; field < 4; field++) {
+			i = skipSpaces(b, skipField(b, i, end), end);
+		}
+		int digits = skipDigits(b, i, end);
+		if (digits == i) {
+			skip(b, end);
+			return null;
+		}
+		long size = toLong(b, i, digits);
+		if (digits < end && b[digits] == ',') {
+			size = 0;
+			digits = skipField(b, skipSpaces(b, digits + 1, end), end);
+		}
+		i = skipSpaces(b, digits, end);
+		// date, time and zone take at least 'yyyy-MM-dd HH:mm:ss +zzzz '
+		if (i + 26 > end || b[i + 4] != '-' || b[i + 7] != '-' || b[i + 10] != ' ' || b[i + 13] != ':' || b[i + 16] != ':') {
+			skip(b, end);
+			return null;
+		}
+		int year = toInt(b, i, 4);
+		int month = toInt(b, i + 5, 2);
+		int day = toInt(b, i + 8, 2);
+		int hour = toInt(b, i + 11, 2);
+		int minute = toInt(b, i + 14, 2);
+		int second = toInt(b, i + 17, 2);
+		i += 19;
+		int millis = 0;
+		if (b[i] == '.') {
+			int fractionEnd = skipDigits(b, ++i, end);
+			for (int scale = 100; scale > 0; scale /= 10, i++) {
+				if (i < fractionEnd) {
+					millis += (b[i] - '0') * scale;
+				}
+			}
+			i = fractionEnd;
+		}
+		i = skipSpaces(b, i, end);
+		if (i + 5 > end || (b[i] != '+' && b[i] != '-')) {
+			skip(b, end);
+			return null;
+		}
+		int minutesAt = b[i + 3] == ':' ? i + 4 : i + 3;
+		int nameStart = minutesAt + 3;
+		if (nameStart > end || b[nameStart - 1] != ' ') {
+			skip(b, end);
+			return null;
+		}
+		int offsetHours = toInt(b, i + 1, 2);
+		int offsetMinutes = toInt(b, minutesAt, 2);
+		if (year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0 || offsetHours < 0 || offsetMinutes < 0) {
+			skip(b, end);
+			return null;
+		}
+		int offset = (offsetHours * 3600 + offsetMinutes * 60) * (b[i] == '-' ? -1 : 1);
+		long epochSecond;
+		try {
+			epochSecond = LocalDate.of(year, month, day).toEpochDay() * 86400 + hour * 3600 + minute * 60 + second - offset;
+		} catch (DateTimeException e) {
+			skip(b, end);
+			return null;
+		}
+		int nameEnd = end;
+		if (b[0] == 'l') {
+			int arrow = indexOf(b, nameStart, end, LINK_ARROW);
+			if (arrow >= 0) {
+				nameEnd = arrow;
+			}
+		}
+		String name = new String(b, nameStart, nameEnd - nameStart, SshHelper.UTF8);
+		return new RemoteFile(name, size, epochSecond * 1000 + millis, b[0] == 'd');
+	}
+
+	private static int skipField(byte[] b, int i, int end) {
+		while (i < end && b[i] != ' ') {
+			i++;
+		}
+		return i;
+	}
+
+	private static int skipSpaces(byte[] b, int i, int end) {
+		while (i < end && b[i] == ' ') {
+			i++;
+		}
+		return i;
+	}
+
+	private static int skipDigits(byte[] b, int i, int end) {
+		while (i < end && b[i] >= '0' && b[i] <= '9') {
+			i++;
+		}
+		return i;
+	}
+
+	private static long toLong(byte[] b, int start, int end) {
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			value = value * 10 + (b[i] - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @return the number of the given digits, or -1 if they are not all digits
+	 */
+	private static int toInt(byte[] b, int start, int digits) {
+		int value = 0;
+		for (int i = start; i < start + digits; i++) {
+			if (b[i] < '0' || b[i] > '9') {
+				return -1;
+			}
+			value = value * 10 + (b[i] - '0');
+		}
+		return value;
+	}
+
+	private static int indexOf(byte[] b, int start, int end, String ascii) {
+		outer: for (int i = start; i + ascii.length() <= end; i++) {
+			for (int j = 0; j < ascii.length(); j++) {
+				if (b[i + j] != ascii.charAt(j)) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static void skip(byte[] b, int length) {
+		if (length > 0 && LOG.isDebugEnabled()) {
+			LOG.debug("Skipping file list output: " + new String(b, 0, length, SshHelper.UTF8));
+		}
+	}
+
+	/**
+	 * Reads the records ending with the delimiter into one reused array. The last record may end without it.
+	 */
+	private static final class RecordReader {
+		private final InputStream in;
+		private final byte delimiter;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private byte[] record = new byte[256];
+		private int position;
+		private int limit;
+
+		private RecordReader(InputStream in, byte delimiter) {
+			this.in = in;
+			this.delimiter = delimiter;
+		}
+
+		/**
+		 * @return length of the next record in 'record', or -1 at the end of the input
+		 */
+		private int next() throws IOException {
+			int length = 0;
+			while (true) {
+				if (position == limit) {
+					limit = in.read(buffer, 0, buffer.length);
+					position = 0;
+					if (limit <= 0) {
+						limit = 0;
+						return length > 0 ? length : -1;
+					}
+				}
+				int start = position;
+				while (position < limit && buffer[position] != delimiter) {
+					position++;
+				}
+				int count = position - start;
+				if (length + count > record.length) {
+					byte[] larger = new byte[Math.max(record.length * 2, length + count)];
+					System.arraycopy(record, 0, larger, 0, length);
+					record = larger;
+				}
+				System.arraycopy(buffer, start, record, length, count);
+				length += count;
+				if (position < limit) {
+					// skips the delimiter
+					position++;
+					return length;
+				}
+			}
+		}
+	}
+}
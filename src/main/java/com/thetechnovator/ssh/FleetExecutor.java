@@ -0,0 +1,372 @@
+package com.thetechnovator.ssh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.thetechnovator.ssh.SshHelper.ExecResult;
+
+/**
+ * Runs a command, or any work done with a {@link SshHelper}, on many hosts at once. A fixed number of worker threads
+ * take the hosts one after the other, so that at most 'parallelism' hosts are connected at the same time.
+ *
+ * Every host is isolated: a host which cannot be connected, fails or exceeds its timeout only yields a failed
+ * {@link HostResult}, the other hosts continue. When the timeout of a host expires, its session is closed, which ends
+ * the running command. The result of every host is passed to the listener as soon as the host is done, in the order
+ * of completion.
+ *
+ * Sessions are built from a template session holding the user, the credentials and the settings, and are closed when
+ * the host is done, unless a {@link SshSessionPool} is given to lease them from. The sessions share the SSH client of
+ * the template's {@link SshClientProvider}, so its I/O threads serve all hosts. A template without one gets a provider
+ * for the duration of each run.
+ *
+ * This object can be constructed intuitively using the {@link Builder}.
+ *
+ * @author JogaSingh
+ *
+ */
+public class FleetExecutor {
+	private static final Logger LOG = LoggerFactory.getLogger(FleetExecutor.class);
+	public static final int DEFAULT_PARALLELISM = 32;
+	public static final long DEFAULT_HOST_TIMEOUT = 5 * 60 * 1000; // 5 minutes
+	private static final ScheduledThreadPoolExecutor TIMEOUTS = createScheduler();
+
+	private SshSession template;
+	private List<String> hosts = new ArrayList<>();
+	private int parallelism = DEFAULT_PARALLELISM;
+	private long hostTimeoutMs = DEFAULT_HOST_TIMEOUT;
+	private boolean connectUserRequiresSudo = false;
+	private SshSessionPool pool;
+
+	private FleetExecutor() {
+
+	}
+
+	/**
+	 * Work done on one host.
+	 */
+	@FunctionalInterface
+	public interface HostTask {
+		ExecResult run(SshHelper helper) throws SshSessionlException;
+	}
+
+	/**
+	 * Executes the command on all hosts and keeps its output in the results.
+	 *
+	 * @param command  - command line and timeouts, the output settings are ignored
+	 * @param listener - called with the result of every host when it is done, 'null' if not needed
+	 * @return results of all hosts, in the order of completion
+	 */
+	public List<HostResult> execute(SshCommand command, Consumer<HostResult> listener) {
+		String commandLine = command.getCommandLine();
+		long maxExecutionTimeMs = command.getMaxExecutionTimeMs();
+		long maxInactivityTimeMs = command.getMaxInactivityTimeMs();
+		return execute(helper -> helper.execute(commandLine, true, maxExecutionTimeMs, maxInactivityTimeMs), listener);
+	}
+
+	/**
+	 * Runs the task on all hosts. Returns when every host is done.
+	 *
+	 * @param task     - called on the worker threads, once per host
+	 * @param listener - called with the result of every host when it is done, one call at a time, 'null' if not
+	 *                 needed
+	 * @return results of all hosts, in the order of completion
+	 */
+	public List<HostResult> execute(HostTask task, Consumer<HostResult> listener) {
+		ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>(hosts);
+		List<HostResult> results = new ArrayList<>(hosts.size());
+		Consumer<HostResult> collector = result -> {
+			synchronized (results) {
+				results.add(result);
+				if (listener != null) {
+					try {
+						listener.accept(result);
+					} catch (RuntimeException e) {
+						LOG.warn("Result listener failed for " + result.getHost() + ": " + e.getMessage(), e);
+					}
+				}
+			}
+		};
+		long start = System.currentTimeMillis();
+		// otherwise every host would start a client with I/O threads of its own
+		SshClientProvider provider = template.getClientProvider() != null ? template.getClientProvider() : new SshClientProvider();
+		// keeps the client running from one host to the next
+		provider.acquire();
+		try {
+			List<Thread> workers = new ArrayList<>();
+			for (int i = 0; i < Math.min(parallelism, hosts.size()); i++) {
+				Thread worker = new Thread(() -> {
+					String host;
+					while ((host = queue.poll()) != null) {
+						collector.accept(run(host, task, provider));
+					}
+				}, "ssh-fleet-" + i);
+				worker.setDaemon(true);
+				workers.add(worker);
+				worker.start();
+			}
+			for (Thread worker : workers) {
+				try {
+					worker.join();
+				} catch (InterruptedException e) {
+					// the workers are left to finish their current host, the remaining hosts are skipped
+					queue.clear();
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		} finally {
+			provider.release();
+		}
+		synchronized (results) {
+			int failed = 0;
+			for (HostResult result : results) {
+				if (!result.isSuccess()) {
+					failed++;
+				}
+			}
+			LOG.info("Ran on " + results.size() + " hosts in " + Utils.msToNamedTimeInterval(System.currentTimeMillis() - start) + ", " + failed + " failed");
+			return new ArrayList<>(results);
+		}
+	}
+
+	private HostResult run(String host, HostTask task, SshClientProvider provider) {
+		long start = System.currentTimeMillis();
+		SshSession session;
+		try {
+			session = sessionFor(host, provider);
+		} catch (NumberFormatException e) {
+			return new HostResult(host, null, new SshSessionlException("Invalid port in " + host, e), false, 0);
+		}
+		SshSessionLease lease = null;
+		HostTimeout timeout = new HostTimeout();
+		try {
+			if (pool != null) {
+				lease = pool.lease(session);
+				session = lease.getSession();
+			} else {
+				session.connect();
+			}
+			timeout.start(session, hostTimeoutMs - (System.currentTimeMillis() - start));
+			ExecResult result = task.run(new SshHelper(session, connectUserRequiresSudo));
+			timeout.stop();
+			if (timeout.expired) {
+				return new HostResult(host, null, timeoutError(host), true, System.currentTimeMillis() - start);
+			}
+			return new HostResult(host, result, null, false, System.currentTimeMillis() - start);
+		} catch (SshSessionlException | RuntimeException e) {
+			timeout.stop();
+			LOG.debug(host + " failed: " + e.getMessage());
+			SshSessionlException error = timeout.expired ? timeoutError(host)
+					: e instanceof SshSessionlException ? (SshSessionlException) e : new SshSessionlException(host + ": " + e.getMessage(), e);
+			return new HostResult(host, null, error, timeout.expired, System.currentTimeMillis() - start);
+		} finally {
+			if (lease != null) {
+				if (timeout.expired || !session.isOpen()) {
+					lease.invalidate();
+				} else {
+					lease.close();
+				}
+			} else {
+				session.close();
+			}
+		}
+	}
+
+	private SshSessionlException timeoutError(String host) {
+		return new SshSessionlException(host + ": timed out after " + Utils.msToNamedTimeInterval(hostTimeoutMs));
+	}
+
+	/**
+	 * Session of the template for the host, given as 'host' or 'host:port'.
+	 */
+	private SshSession sessionFor(String host, SshClientProvider provider) {
+		int colon = host.lastIndexOf(':');
+		if (colon > 0 && host.indexOf(':') == colon) {
+			return template.copy(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1)), provider);
+		}
+		return template.copy(host, template.getPort(), provider);
+	}
+
+	private static ScheduledThreadPoolExecutor createScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "ssh-fleet-timeout");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+
+	/**
+	 * Closes the session of a host when its time is up. The connection time counts as well, it is bounded by the
+	 * connect and authentication timeouts of the session.
+	 */
+	private static final class HostTimeout {
+		private ScheduledFuture<?> future;
+		private volatile boolean expired = false;
+
+		private synchronized void start(SshSession session, long delayMs) {
+			future = TIMEOUTS.schedule(() -> {
+				expired = true;
+				session.close();
+			}, Math.max(0, delayMs), TimeUnit.MILLISECONDS);
+		}
+
+		private synchronized void stop() {
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Outcome on one host: the result of the task, or the error which ended it.
+	 */
+	public static class HostResult {
+		private final String host;
+		private final ExecResult result;
+		private final SshSessionlException error;
+		private final boolean timedOut;
+		private final long durationMs;
+
+		private HostResult(String host, ExecResult result, SshSessionlException error, boolean timedOut, long durationMs) {
+			this.host = host;
+			this.result = result;
+			this.error = error;
+			this.timedOut = timedOut;
+			this.durationMs = durationMs;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		/**
+		 * Result of the task, 'null' if it failed.
+		 */
+		public ExecResult getResult() {
+			return result;
+		}
+
+		/**
+		 * Error which ended the task, e.g. a connection or authentication error, 'null' if it completed.
+		 */
+		public SshSessionlException getError() {
+			return error;
+		}
+
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+
+		/**
+		 * Whether the task completed and returned a result with exit status 0.
+		 */
+		public boolean isSuccess() {
+			return result != null && !result.isFailed();
+		}
+
+		public long getDurationMs() {
+			return durationMs;
+		}
+
+		@Override
+		public String toString() {
+			return "HostResult [host=" + host + ", " + (result != null ? "exitStatus=" + result.getExitStatus() : "error=" + error.getMessage()) + ", duration="
+					+ Utils.msToNamedTimeInterval(durationMs) + "]";
+		}
+	}
+
+	/**
+	 * Builder for FleetExecutor
+	 *
+	 * @author JogaSingh
+	 *
+	 */
+	public static class Builder {
+		private FleetExecutor executor = new FleetExecutor();
+
+		public static Builder getInstance() {
+			return new Builder();
+		}
+
+		/**
+		 * Unconnected session built with the {@link SshSession.Builder}, whose user, credentials and settings are used for
+		 * every host. Its host is ignored, its port is used for hosts given without one.
+		 */
+		public Builder template(SshSession template) {
+			executor.template = template;
+			return this;
+		}
+
+		/**
+		 * Hosts to run on, as 'host' or 'host:port'.
+		 */
+		public Builder hosts(Collection<String> hosts) {
+			executor.hosts = new ArrayList<>(hosts);
+			return this;
+		}
+
+		public Builder hosts(String... hosts) {
+			return hosts(Arrays.asList(hosts));
+		}
+
+		/**
+		 * Maximum number of hosts worked on at the same time. Default is {@value FleetExecutor#DEFAULT_PARALLELISM}.
+		 */
+		public Builder parallelism(int parallelism) {
+			if (parallelism < 1) {
+				throw new IllegalArgumentException("parallelism must be at least 1");
+			}
+			executor.parallelism = parallelism;
+			return this;
+		}
+
+		/**
+		 * Maximum time for one host, connecting included. Default is 5 minutes.
+		 */
+		public Builder hostTimeoutMs(long hostTimeoutMs) {
+			if (hostTimeoutMs < 1) {
+				throw new IllegalArgumentException("hostTimeoutMs must be positive");
+			}
+			executor.hostTimeoutMs = hostTimeoutMs;
+			return this;
+		}
+
+		/**
+		 * Whether the commands of the helpers are to be prefixed with 'sudo'. Default is 'false'.
+		 */
+		public Builder connectUserRequiresSudo(boolean connectUserRequiresSudo) {
+			executor.connectUserRequiresSudo = connectUserRequiresSudo;
+			return this;
+		}
+
+		/**
+		 * Pool to lease the sessions from, so that they are reused by the following runs. By default every host gets a
+		 * new session which is closed when the host is done.
+		 */
+		public Builder pool(SshSessionPool pool) {
+			executor.pool = pool;
+			return this;
+		}
+
+		public FleetExecutor build() {
+			if (executor.template == null) {
+				throw new IllegalArgumentException("template is required");
+			}
+			executor.hosts = Collections.unmodifiableList(executor.hosts);
+			return executor;
+		}
+	}
+}
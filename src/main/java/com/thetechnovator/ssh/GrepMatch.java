@@ -0,0 +1,39 @@
+package com.thetechnovator.ssh;
+
+/**
+ * Line found by a {@link ParallelGrep}, with the file and the line number where it was found.
+ *
+ * @author JogaSingh
+ *
+ */
+public class GrepMatch {
+	private final String path;
+	private final long lineNumber;
+	private final String line;
+
+	GrepMatch(String path, long lineNumber, String line) {
+		this.path = path;
+		this.lineNumber = lineNumber;
+		this.line = line;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Number of the line in the file, starting with 1.
+	 */
+	public long getLineNumber() {
+		return lineNumber;
+	}
+
+	public String getLine() {
+		return line;
+	}
+
+	@Override
+	public String toString() {
+		return path + ":" + lineNumber + ":" + line;
+	}
+}
@@ -0,0 +1,23 @@
+package com.thetechnovator.ssh;
+
+/**
+ * Order in which a {@link ParallelGrep} passes the matches of several files.
+ *
+ * @author JogaSingh
+ *
+ */
+public enum GrepOrder {
+	/**
+	 * Matches are passed as soon as they are found. Matches of one file stay in line order, but files searched at the same
+	 * time are interleaved. Nothing is buffered.
+	 */
+	ARRIVAL,
+	/**
+	 * File by file, sorted by path, each in line order.
+	 */
+	PATH,
+	/**
+	 * File by file, the least recently modified first, each in line order. Puts rotated logs in chronological order.
+	 */
+	MODIFIED
+}
@@ -0,0 +1,306 @@
+package com.thetechnovator.ssh;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads only what was appended to remote files since the previous read. The inode and the offset reached are kept per
+ * path, and the next read starts there with 'tail -c +N' on the remote host, so a growing file is transferred once
+ * instead of on every read.
+ *
+ * When the file was truncated, or replaced by another file (another inode, e.g. after log rotation), it is read again
+ * from its beginning and the chunk is marked as reset. Every read is one round trip: the file is checked and read by
+ * the same command, and only the bytes up to the size seen by that check are returned, so a line still being written
+ * is completed by the next read.
+ *
+ * The remembered positions can be taken with {@link #getPosition(String)} and restored with
+ * {@link #setPosition(String, LogFollower.Position)}, e.g. to survive a restart of the reading process.
+ *
+ * The remote host needs GNU 'stat', 'tail' and 'head'. Files are read as the connected user.
+ *
+ * This object can be constructed intuitively using the {@link Builder}.
+ *
+ * @author JogaSingh
+ *
+ */
+public class IncrementalFileReader {
+	private static final Logger LOG = LoggerFactory.getLogger(IncrementalFileReader.class);
+
+	private SshSession session;
+	private boolean compress = false;
+	private final Map<String, LogFollower.Position> positions = new ConcurrentHashMap<>();
+
+	private IncrementalFileReader() {
+
+	}
+
+	/**
+	 * Position reached in the file, 'null' if it was not read yet.
+	 */
+	public LogFollower.Position getPosition(String path) {
+		return positions.get(path);
+	}
+
+	/**
+	 * Sets the position the next read of the file starts from.
+	 */
+	public void setPosition(String path, LogFollower.Position position) {
+		positions.put(path, position);
+	}
+
+	/**
+	 * Starts reading the bytes appended to the file since the previous read. The position is advanced by the bytes read
+	 * from the chunk when it is closed.
+	 *
+	 * @param path
+	 * @return the appended bytes, to be closed
+	 * @throws SshSessionlException if the file does not exist
+	 */
+	public Chunk read(String path) throws SshSessionlException {
+		LogFollower.Position from = positions.get(path);
+		String file = Utils.shellQuote(path);
+		StringBuilder cmd = new StringBuilder();
+		cmd.append("set -- $(stat -L -c '%i %s' -- ").append(file).append("); [ -n \"$1\" ] || exit 1; o=0; ");
+		if (from != null) {
+			cmd.append("if [ \"$1\" = ").append(Utils.shellQuote(from.getInode())).append(" ] && [ \"$2\" -ge ").append(from.getOffset()).append(" ]; then o=")
+					.append(from.getOffset()).append("; fi; ");
+		}
+		// the size checked above bounds the chunk, bytes appended in the meantime are left for the next read
+		cmd.append("echo \"$1 $2 $o\"; tail -c +$((o + 1)) -- ").append(file).append(" | head -c $(($2 - o))");
+		SshCommand sshCommand = new SshCommand(cmd.toString(), null, false);
+		sshCommand.setCompressOutput(compress);
+		OutputLines output = session.lines(sshCommand);
+		try {
+			InputStream in = output.getInputStream();
+			String header = readHeader(in);
+			String[] tokens = StringUtils.split(header, " ");
+			if (tokens.length != 3) {
+				output.getExitStatus();
+				throw new SshSessionlException("Cannot read " + path + ": " + StringUtils.defaultIfEmpty(output.getErrorOutput().trim(), header));
+			}
+			String inode = tokens[0];
+			long size = Long.parseLong(tokens[1]);
+			long offset = Long.parseLong(tokens[2]);
+			boolean reset = from != null && offset == 0 && from.getOffset() > 0;
+			if (reset) {
+				LOG.info(path + " was truncated or replaced, reading it from the beginning");
+			}
+			return new Chunk(path, inode, offset, size - offset, reset, output);
+		} catch (IOException | SshSessionlException | RuntimeException e) {
+			output.close();
+			if (e instanceof SshSessionlException) {
+				throw (SshSessionlException) e;
+			}
+			throw new SshSessionlException("Cannot read " + path + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Copies the bytes appended to the file since the previous read.
+	 *
+	 * @param path
+	 * @param out  - not closed
+	 * @return number of bytes copied
+	 * @throws SshSessionlException
+	 */
+	public long read(String path, OutputStream out) throws SshSessionlException {
+		try (Chunk chunk = read(path)) {
+			InputStream in = chunk.getInputStream();
+			byte[] buf = new byte[32 * 1024];
+			long total = 0;
+			int len;
+			while ((len = in.read(buf)) != -1) {
+				out.write(buf, 0, len);
+				total += len;
+			}
+			return total;
+		} catch (IOException e) {
+			throw new SshSessionlException("Error reading " + path + ": " + e.getMessage(), e);
+		}
+	}
+
+	private static String readHeader(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1 && c != '\n') {
+			sb.append((char) c);
+		}
+		return sb.toString().trim();
+	}
+
+	/**
+	 * Bytes appended to a file, read while they arrive.
+	 */
+	public class Chunk implements AutoCloseable {
+		private final String path;
+		private final String inode;
+		private final long offset;
+		private final long length;
+		private final boolean reset;
+		private final OutputLines output;
+		private final CountingInputStream in;
+		private boolean closed = false;
+
+		private Chunk(String path, String inode, long offset, long length, boolean reset, OutputLines output) {
+			this.path = path;
+			this.inode = inode;
+			this.offset = offset;
+			this.length = length;
+			this.reset = reset;
+			this.output = output;
+			this.in = new CountingInputStream(output.getInputStream());
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Offset in the file of the first byte of the chunk.
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Number of bytes in the chunk, 0 when nothing was appended.
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * Whether the file was truncated or replaced since the previous read, so the chunk starts at its beginning.
+		 */
+		public boolean isReset() {
+			return reset;
+		}
+
+		/**
+		 * The bytes of the chunk. Reading it less than completely is allowed, the next read continues after the bytes
+		 * read.
+		 */
+		public InputStream getInputStream() {
+			return in;
+		}
+
+		/**
+		 * Ends the read and advances the position of the file by the bytes read.
+		 */
+		@Override
+		public synchronized void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			long read = in.count;
+			if (read == length) {
+				try {
+					int status = output.getExitStatus();
+					if (status != 0) {
+						LOG.warn("Reading " + path + " ended with status " + status + ": " + output.getErrorOutput().trim());
+					}
+				} catch (SshSessionlException e) {
+					LOG.warn("Reading " + path + " failed: " + e.getMessage());
+				}
+			}
+			output.close();
+			positions.put(path, new LogFollower.Position(inode, offset + read));
+		}
+	}
+
+	/**
+	 * Counts the bytes read, the remote 'head' ends the stream at the length of the chunk.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		private long count = 0;
+
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int c = super.read();
+			if (c != -1) {
+				count++;
+			}
+			return c;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			if (skipped > 0) {
+				count += skipped;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			// a reset would count the bytes read again
+			return false;
+		}
+
+		@Override
+		public void close() {
+			// the chunk closes the channel
+		}
+	}
+
+	/**
+	 * Builder for IncrementalFileReader
+	 *
+	 * @author JogaSingh
+	 *
+	 */
+	public static class Builder {
+		private IncrementalFileReader reader = new IncrementalFileReader();
+
+		public static Builder getInstance() {
+			return new Builder();
+		}
+
+		/**
+		 * Connected session.
+		 */
+		public Builder session(SshSession session) {
+			reader.session = session;
+			return this;
+		}
+
+		/**
+		 * Whether the appended bytes are compressed with 'gzip' on the remote host, which pays off for text files read
+		 * over slow links. Default is 'false'.
+		 */
+		public Builder compress(boolean compress) {
+			reader.compress = compress;
+			return this;
+		}
+
+		public IncrementalFileReader build() {
+			if (reader.session == null) {
+				throw new IllegalArgumentException("session is required");
+			}
+			return reader;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.thetechnovator.ssh;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Positional access to a local file for transfers. The data of the SFTP packets is copied between the packet buffer and
+ * the file without any intermediate heap buffer, either with positional {@link FileChannel} reads and writes or through
+ * windows of a memory mapping when the size of the file is known.
+ *
+ * @author JogaSingh
+ *
+ */
+final class LocalFileAccess {
+	/**
+	 * Size of a mapped window. A file is mapped window by window, so that large files do not need a large address
+	 * range.
+	 */
+	static final long MAPPED_WINDOW_SIZE = 64 * 1024 * 1024; // 64 MB
+
+	private LocalFileAccess() {
+
+	}
+
+	/**
+	 * Receives transferred bytes at a position of the file.
+	 */
+	interface Sink {
+		void write(byte[] buf, int off, int len, long position) throws IOException;
+	}
+
+	/**
+	 * Fills a packet buffer with the bytes at a position of the file.
+	 */
+	interface Source {
+		void read(byte[] buf, int off, int len, long position) throws IOException;
+	}
+
+	static Sink channelSink(FileChannel channel) {
+		return (buf, off, len, position) -> {
+			ByteBuffer src = ByteBuffer.wrap(buf, off, len);
+			while (src.hasRemaining()) {
+				channel.write(src, position + src.position() - off);
+			}
+		};
+	}
+
+	static Source channelSource(FileChannel channel) {
+		return (buf, off, len, position) -> {
+			ByteBuffer dst = ByteBuffer.wrap(buf, off, len);
+			while (dst.hasRemaining()) {
+				if (channel.read(dst, position + dst.position() - off) == -1) {
+					throw new EOFException("Local file ended at " + (position + dst.position() - off));
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes through a mapping of the file, which must have been opened for reading and writing. Bytes beyond 'size' are
+	 * written to the channel, so a file which grew since its size was taken is still complete.
+	 */
+	static Sink mappedSink(FileChannel channel, long size) {
+		MappedWindows windows = new MappedWindows(channel, MapMode.READ_WRITE, size);
+		return (buf, off, len, position) -> {
+			int mapped = (int) Math.max(0, Math.min(len, size - position));
+			int done = 0;
+			while (done < mapped) {
+				MappedByteBuffer window = windows.at(position + done);
+				int n = (int) Math.min(mapped - done, windows.end - position - done);
+				window.position((int) (position + done - windows.start));
+				window.put(buf, off + done, n);
+				done += n;
+			}
+			if (done < len) {
+				channelSink(channel).write(buf, off + done, len - done, position + done);
+			}
+		};
+	}
+
+	/**
+	 * Reads through a read-only mapping of the first 'size' bytes of the file.
+	 */
+	static Source mappedSource(FileChannel channel, long size) {
+		MappedWindows windows = new MappedWindows(channel, MapMode.READ_ONLY, size);
+		return (buf, off, len, position) -> {
+			if (position + len > size) {
+				throw new EOFException("Local file ended at " + size);
+			}
+			int done = 0;
+			while (done < len) {
+				MappedByteBuffer window = windows.at(position + done);
+				int n = (int) Math.min(len - done, windows.end - position - done);
+				window.position((int) (position + done - windows.start));
+				window.get(buf, off + done, n);
+				done += n;
+			}
+		};
+	}
+
+	/**
+	 * The window of the mapping currently in use. Transfers are mostly sequential, so a new window is mapped only when
+	 * the previous one is done with. Windows are released by the garbage collector.
+	 */
+	private static final class MappedWindows {
+		private final FileChannel channel;
+		private final MapMode mode;
+		private final long size;
+		private MappedByteBuffer window;
+		private long start;
+		private long end;
+
+		private MappedWindows(FileChannel channel, MapMode mode, long size) {
+			this.channel = channel;
+			this.mode = mode;
+			this.size = size;
+		}
+
+		private MappedByteBuffer at(long position) throws IOException {
+			if (window == null || position < start || position >= end) {
+				start = position - position % MAPPED_WINDOW_SIZE;
+				end = Math.min(start + MAPPED_WINDOW_SIZE, size);
+				window = channel.map(mode, start, end - start);
+			}
+			return window;
+		}
+	}
+}
@@ -0,0 +1,441 @@
+package com.thetechnovator.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Follows a remote log file like 'tail -F' and delivers the lines as they are appended, over one long-lived exec
+ * channel instead of repeated polling.
+ *
+ * Rotation and truncation are followed: when the file is replaced, removed and created again, or truncated, the lines
+ * of the new file are delivered from its beginning. Every line carries the {@link Position} after it, made of the inode
+ * of the file and the byte offset. Following again from the position of the last line processed, e.g. after a
+ * reconnect, continues with the next line without duplicates, as long as the file was not rotated in between. An
+ * unterminated last line is only delivered once its line feed has been written.
+ *
+ * Lines are delivered either to a consumer, on the thread of the follower, or through a bounded queue. When the consumer
+ * is slow or the queue is full, reading stops, and the channel window makes the remote 'tail' wait, so memory stays
+ * bounded.
+ *
+ * The remote host needs GNU 'tail' and 'stat'. The file is read as the connected user.
+ *
+ * This object can be constructed intuitively using the {@link Builder}.
+ *
+ * @author JogaSingh
+ *
+ */
+public class LogFollower implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(LogFollower.class);
+	public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+	// longer lines are delivered in parts, so that a file without line feeds cannot fill the memory
+	private static final int MAX_LINE_LENGTH = 1024 * 1024;
+	// start of the messages of 'tail' about rotation, merged into the output
+	private static final byte[] TAIL_PREFIX = "tail: ".getBytes(SshHelper.UTF8);
+	private static final Line END = new Line(null, null);
+
+	private SshSession session;
+	private String path;
+	private Position from;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private BlockingQueue<Line> queue;
+	private Thread thread;
+	private volatile OutputLines output;
+	private volatile boolean closed = false;
+	private volatile SshSessionlException error;
+	private volatile Position position;
+
+	private LogFollower() {
+
+	}
+
+	/**
+	 * Starts following. The lines are to be read with {@link #take()} or {@link #poll(long, TimeUnit)}.
+	 *
+	 * @throws SshSessionlException if the command could not be started
+	 */
+	public void start() throws SshSessionlException {
+		queue = new ArrayBlockingQueue<>(queueCapacity);
+		start(line -> {
+			try {
+				queue.put(line);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+	}
+
+	/**
+	 * Starts following and passes every line to the consumer, on the thread of the follower. The next line is only read
+	 * when the consumer returns.
+	 *
+	 * @param consumer
+	 * @throws SshSessionlException if the command could not be started
+	 */
+	public synchronized void start(Consumer<Line> consumer) throws SshSessionlException {
+		if (thread != null) {
+			throw new IllegalStateException("Follower already started");
+		}
+		SshCommand cmd = new SshCommand(command(), null, false);
+		// a quiet log is not an inactive command, and following has no end
+		cmd.setMaxExecutionTimeMs(Long.MAX_VALUE);
+		cmd.setMaxInactivityTimeMs(Long.MAX_VALUE);
+		output = session.lines(cmd);
+		thread = new Thread(() -> run(consumer), "ssh-log-follower");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Waits for the next line.
+	 *
+	 * @return 'null' when following has ended, see {@link #getError()}
+	 * @throws InterruptedException
+	 */
+	public Line take() throws InterruptedException {
+		Line line = queue.take();
+		return endOf(line);
+	}
+
+	/**
+	 * Waits up to the timeout for the next line.
+	 *
+	 * @return 'null' if no line arrived in time or following has ended
+	 * @throws InterruptedException
+	 */
+	public Line poll(long timeout, TimeUnit unit) throws InterruptedException {
+		Line line = queue.poll(timeout, unit);
+		return line == null ? null : endOf(line);
+	}
+
+	private Line endOf(Line line) {
+		if (line == END) {
+			// left for the other readers
+			queue.offer(END);
+			return null;
+		}
+		return line;
+	}
+
+	/**
+	 * Whether following has ended, because the follower was closed or the connection failed.
+	 */
+	public boolean isEnded() {
+		return thread != null && !thread.isAlive();
+	}
+
+	/**
+	 * Error which ended following, 'null' if it was closed.
+	 */
+	public SshSessionlException getError() {
+		return error;
+	}
+
+	/**
+	 * Position after the last line read from the remote file. Lines still in the queue are included, so the position of
+	 * the last line processed is the one to keep for resuming.
+	 */
+	public Position getPosition() {
+		return position;
+	}
+
+	/**
+	 * Stops following and terminates the remote 'tail'.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		OutputLines out = output;
+		if (out != null) {
+			out.close();
+		}
+		if (thread != null && thread != Thread.currentThread()) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Prints the inode and the starting byte of the file, then follows it. Merging the standard error keeps the
+	 * messages of 'tail' about rotation in order with the lines.
+	 */
+	private String command() {
+		String file = Utils.shellQuote(path);
+		StringBuilder cmd = new StringBuilder();
+		cmd.append("i=$(stat -L -c %i -- ").append(file).append(" 2>/dev/null); s=$(stat -L -c %s -- ").append(file).append(" 2>/dev/null); ");
+		if (from == null) {
+			// from the current end
+			cmd.append("o=${s:-0}; ");
+		} else {
+			cmd.append("o=0; if [ \"$i\" = ").append(Utils.shellQuote(from.getInode())).append(" ] && [ \"${s:-0}\" -ge ").append(from.getOffset()).append(" ]; then o=")
+					.append(from.getOffset()).append("; fi; ");
+		}
+		cmd.append("echo \"$i $o\"; exec tail -c +$((o + 1)) -F -- ").append(file).append(" 2>&1");
+		return cmd.toString();
+	}
+
+	private void run(Consumer<Line> consumer) {
+		try {
+			InputStream in = output.getInputStream();
+			String[] header = StringUtils.split(readHeader(in), " ");
+			if (header.length == 1) {
+				// the file does not exist yet
+				position = new Position("", 0);
+			} else {
+				position = new Position(header[0], Long.parseLong(header[1]));
+			}
+			LOG.info("Following " + path + " from " + position);
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) != -1) {
+				int start = 0;
+				for (int i = 0; i < len; i++) {
+					if (buf[i] == '\n') {
+						line.write(buf, start, i - start);
+						deliver(line.toByteArray(), true, consumer);
+						line.reset();
+						start = i + 1;
+					} else if (line.size() + i - start >= MAX_LINE_LENGTH) {
+						line.write(buf, start, i - start);
+						deliver(line.toByteArray(), false, consumer);
+						line.reset();
+						start = i;
+					}
+				}
+				line.write(buf, start, len - start);
+			}
+			if (!closed) {
+				error = new SshSessionlException("Following " + path + " ended: " + output.getErrorOutput().trim());
+			}
+		} catch (IOException | RuntimeException e) {
+			if (!closed) {
+				error = new SshSessionlException("Following " + path + " failed: " + e.getMessage(), e);
+			}
+		} finally {
+			if (error != null) {
+				LOG.warn(error.getMessage());
+			}
+			output.close();
+			if (queue != null) {
+				endQueue();
+			}
+		}
+	}
+
+	/**
+	 * Marks the end after the lines still queued. A full queue is waited on, unless the follower was closed.
+	 */
+	private void endQueue() {
+		try {
+			if (closed) {
+				queue.offer(END);
+			} else {
+				queue.put(END);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String readHeader(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1 && c != '\n') {
+			sb.append((char) c);
+		}
+		if (c == -1) {
+			throw new IOException("No output from the remote command");
+		}
+		return sb.toString().trim();
+	}
+
+	private void deliver(byte[] bytes, boolean lineFeed, Consumer<Line> consumer) throws IOException {
+		if (lineFeed) {
+			int start = lastIndexOf(bytes, TAIL_PREFIX);
+			// after the last bytes of a file without line feed, only a notice naming the followed file is taken as one
+			if (start == 0 || (start > 0 && namesPath(new String(bytes, start + TAIL_PREFIX.length, bytes.length - start - TAIL_PREFIX.length, SshHelper.UTF8)))) {
+				String notice = new String(bytes, start, bytes.length - start, SshHelper.UTF8);
+				boolean reset = notice.endsWith("following new file") || notice.endsWith(": file truncated");
+				if (reset || notice.contains("has become inaccessible") || notice.contains("cannot open")
+						|| notice.contains("has been replaced with an untailable")) {
+					if (start > 0) {
+						// the file ended without a line feed, the notice follows its last bytes
+						deliverLine(Arrays.copyOf(bytes, start), false, consumer);
+					}
+					if (reset) {
+						// lines of the new or truncated file follow from its beginning
+						position = new Position(currentInode(), 0);
+					}
+					LOG.info(notice);
+					return;
+				}
+			}
+		}
+		deliverLine(bytes, lineFeed, consumer);
+	}
+
+	/**
+	 * Whether the message of 'tail' starts with the followed path, quoted like 'tail' does, or without quotes as in
+	 * '&lt;path&gt;: file truncated'.
+	 */
+	private boolean namesPath(String message) {
+		String quoted = Utils.shellQuote(path);
+		return message.startsWith(quoted + " ") || message.startsWith("cannot open " + quoted + " ") || message.equals(path + ": file truncated")
+				|| message.equals(quoted + ": file truncated");
+	}
+
+	private void deliverLine(byte[] bytes, boolean lineFeed, Consumer<Line> consumer) {
+		position = new Position(position.getInode(), position.getOffset() + bytes.length + (lineFeed ? 1 : 0));
+		consumer.accept(new Line(new String(bytes, SshHelper.UTF8), position));
+	}
+
+	private static int lastIndexOf(byte[] bytes, byte[] part) {
+		outer: for (int i = bytes.length - part.length; i >= 0; i--) {
+			for (int j = 0; j < part.length; j++) {
+				if (bytes[i + j] != part[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private String currentInode() throws IOException {
+		try (OutputLines lines = session.lines(new SshCommand("stat -L -c %i -- " + Utils.shellQuote(path), null, false))) {
+			String inode = lines.readLine();
+			lines.getExitStatus();
+			return inode != null ? inode.trim() : "";
+		} catch (SshSessionlException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Line of the followed file, without the line feed.
+	 */
+	public static class Line {
+		private final String text;
+		private final Position position;
+
+		private Line(String text, Position position) {
+			this.text = text;
+			this.position = position;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		/**
+		 * Position after this line, to resume from.
+		 */
+		public Position getPosition() {
+			return position;
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+
+	/**
+	 * Inode of the file and byte offset in it. The text form '&lt;inode&gt;:&lt;offset&gt;' can be stored and parsed
+	 * again.
+	 */
+	public static class Position {
+		private final String inode;
+		private final long offset;
+
+		public Position(String inode, long offset) {
+			this.inode = inode;
+			this.offset = offset;
+		}
+
+		public static Position parse(String str) {
+			int colon = str.lastIndexOf(':');
+			if (colon < 0) {
+				throw new IllegalArgumentException("Not a position: " + str);
+			}
+			return new Position(str.substring(0, colon), Long.parseLong(str.substring(colon + 1)));
+		}
+
+		public String getInode() {
+			return inode;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		@Override
+		public String toString() {
+			return inode + ":" + offset;
+		}
+	}
+
+	/**
+	 * Builder for LogFollower
+	 *
+	 * @author JogaSingh
+	 *
+	 */
+	public static class Builder {
+		private LogFollower follower = new LogFollower();
+
+		public static Builder getInstance() {
+			return new Builder();
+		}
+
+		/**
+		 * Connected session. The follower keeps one exec channel open on it.
+		 */
+		public Builder session(SshSession session) {
+			follower.session = session;
+			return this;
+		}
+
+		public Builder path(String path) {
+			follower.path = path;
+			return this;
+		}
+
+		/**
+		 * Position to resume from, usually that of the last line processed. When it is not set, or the file was replaced
+		 * or cut since, following starts at the current end of the file, respectively at the beginning of the new file.
+		 */
+		public Builder from(Position from) {
+			follower.from = from;
+			return this;
+		}
+
+		/**
+		 * Number of lines read ahead when the lines are taken from the queue. Default is
+		 * {@value LogFollower#DEFAULT_QUEUE_CAPACITY}.
+		 */
+		public Builder queueCapacity(int queueCapacity) {
+			if (queueCapacity < 1) {
+				throw new IllegalArgumentException("queueCapacity must be at least 1");
+			}
+			follower.queueCapacity = queueCapacity;
+			return this;
+		}
+
+		public LogFollower build() {
+			if (follower.session == null || follower.path == null) {
+				throw new IllegalArgumentException("session and path are required");
+			}
+			return follower;
+		}
+	}
+}
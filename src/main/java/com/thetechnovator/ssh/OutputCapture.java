@@ -0,0 +1,197 @@
+package com.thetechnovator.ssh;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.LineIterator;
+
+/**
+ * Captures the output of a command in memory. The buffer grows as needed, and once the output exceeds the spill
+ * threshold it is moved to a temporary file and the rest is written there. Small outputs never touch the file system.
+ *
+ * Buffers are taken from and returned to a small shared pool, so that repeated commands do not allocate a new buffer
+ * each time. The capture must be closed to return its buffer and to delete the temporary file.
+ *
+ * The output can be read as bytes, as a String or line by line. None of them copies the buffer before decoding.
+ *
+ * @author JogaSingh
+ *
+ */
+public class OutputCapture extends OutputStream {
+	public static final int DEFAULT_SPILL_THRESHOLD = 4 * 1024 * 1024; // 4 MB
+	private static final int INITIAL_SIZE = 8192;
+	private static final int MAX_POOLED_SIZE = 256 * 1024;
+	private static final ArrayBlockingQueue<byte[]> POOL = new ArrayBlockingQueue<>(16);
+
+	private final int spillThreshold;
+	private byte[] buf;
+	// bytes in the buffer, at most the spill threshold
+	private int count = 0;
+	// bytes written to the file, more than fits into an int for very large output
+	private long spilledCount = 0;
+	private File file;
+	private OutputStream fileOut;
+	private boolean closed = false;
+
+	public OutputCapture() {
+		this(DEFAULT_SPILL_THRESHOLD);
+	}
+
+	/**
+	 * @param spillThreshold - number of bytes kept in memory, output beyond it is written to a temporary file.
+	 */
+	public OutputCapture(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+		byte[] pooled = POOL.poll();
+		this.buf = pooled != null ? pooled : new byte[Math.min(INITIAL_SIZE, Math.max(spillThreshold, 1))];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Output capture is closed");
+		}
+		if (fileOut == null && count + len > spillThreshold) {
+			spill();
+		}
+		if (fileOut != null) {
+			fileOut.write(b, off, len);
+			spilledCount += len;
+			return;
+		}
+		if (count + len > buf.length) {
+			grow(count + len);
+		}
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		if (fileOut != null) {
+			fileOut.flush();
+		}
+	}
+
+	/**
+	 * Number of bytes captured so far.
+	 */
+	public synchronized long size() {
+		return file != null ? spilledCount : count;
+	}
+
+	/**
+	 * Whether the output was too big to be kept in memory.
+	 */
+	public synchronized boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * Returns a copy of the captured bytes.
+	 */
+	public synchronized byte[] toByteArray() throws IOException {
+		if (file != null) {
+			fileOut.flush();
+			return FileUtils.readFileToByteArray(file);
+		}
+		byte[] bytes = new byte[count];
+		System.arraycopy(buf, 0, bytes, 0, count);
+		return bytes;
+	}
+
+	/**
+	 * Decodes the captured output, directly from the buffer when it is in memory.
+	 */
+	public synchronized String toString(Charset charset) throws IOException {
+		if (file != null) {
+			fileOut.flush();
+			return FileUtils.readFileToString(file, charset);
+		}
+		return new String(buf, 0, count, charset);
+	}
+
+	@Override
+	public String toString() {
+		try {
+			return toString(SshHelper.UTF8);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns a stream over the captured output. The capture must not be written nor closed while the stream is read.
+	 */
+	public synchronized InputStream getInputStream() throws IOException {
+		if (file != null) {
+			fileOut.flush();
+			return new FileInputStream(file);
+		}
+		return new ByteArrayInputStream(buf, 0, count);
+	}
+
+	/**
+	 * Iterates over the lines of the captured output without decoding all of it at once. The iterator must be closed
+	 * when the output is spilled to a file.
+	 */
+	public LineIterator lineIterator(Charset charset) throws IOException {
+		return IOUtils.lineIterator(getInputStream(), charset);
+	}
+
+	/**
+	 * Returns the buffer to the pool and deletes the temporary file, if any.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (fileOut != null) {
+			Utils.closeQuietly(fileOut);
+			FileUtils.deleteQuietly(file);
+		}
+		release(buf);
+		buf = null;
+	}
+
+	private void grow(int minCapacity) {
+		int capacity = Math.max(buf.length * 2, minCapacity);
+		byte[] bigger = new byte[Math.min(capacity, spillThreshold)];
+		System.arraycopy(buf, 0, bigger, 0, count);
+		release(buf);
+		buf = bigger;
+	}
+
+	private void spill() throws IOException {
+		file = File.createTempFile("remote", ".out");
+		fileOut = new BufferedOutputStream(new FileOutputStream(file), INITIAL_SIZE);
+		fileOut.write(buf, 0, count);
+		spilledCount = count;
+		release(buf);
+		buf = null;
+	}
+
+	private static void release(byte[] buf) {
+		// large buffers are left to the garbage collector, so that the pool stays small
+		if (buf != null && buf.length <= MAX_POOLED_SIZE) {
+			POOL.offer(buf);
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package com.thetechnovator.ssh;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.sshd.client.channel.ChannelExec;
+import org.apache.sshd.client.channel.ClientChannelEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Output of a command read line by line while it arrives. The output is not buffered beyond the channel window: the
+ * server only sends more data when the lines already received have been consumed, so memory stays bounded however large
+ * the output is.
+ *
+ * The lines must be consumed, or the object closed, before the exit status is available. Closing before the end of the
+ * output terminates the command.
+ *
+ * Output compressed on the remote host (see {@link SshCommand#setCompressOutput(boolean)}) is decompressed while it is
+ * read.
+ *
+ * @author JogaSingh
+ *
+ */
+public class OutputLines implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(OutputLines.class);
+	private static final int MAX_ERROR_OUTPUT = 64 * 1024;
+
+	private final ChannelExec channel;
+	private final SshCommand cmd;
+	private final CommandWatchdog watchdog;
+	private final AtomicReference<String> timeout;
+	private final BoundedOutputStream err;
+	private final InputStream in;
+	private final BufferedReader reader;
+
+	OutputLines(ChannelExec channel, SshCommand cmd, CommandWatchdog watchdog, AtomicReference<String> timeout, BoundedOutputStream err) {
+		this.channel = channel;
+		this.cmd = cmd;
+		this.watchdog = watchdog;
+		this.timeout = timeout;
+		this.err = err;
+		InputStream out = new ActivityInputStream(channel.getInvertedOut(), watchdog);
+		this.in = cmd.isCompressOutput() ? new GunzipInputStream(out) : out;
+		this.reader = new BufferedReader(new InputStreamReader(in, SshHelper.UTF8));
+	}
+
+	/**
+	 * Lines of the standard output, read lazily. Read errors and timeouts are thrown as
+	 * {@link java.io.UncheckedIOException}.
+	 */
+	public Stream<String> stream() {
+		return reader.lines().onClose(this::close);
+	}
+
+	/**
+	 * Reads the next line, 'null' at the end of the output.
+	 */
+	public String readLine() throws SshSessionlException {
+		try {
+			return reader.readLine();
+		} catch (IOException e) {
+			throw new SshSessionlException(timeout.get() != null ? timeout.get() : e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * The standard output as bytes, for callers which split it themselves.
+	 */
+	InputStream getInputStream() {
+		return in;
+	}
+
+	/**
+	 * Copies the output as bytes instead of reading it as lines. To be used instead of, not after, reading lines.
+	 *
+	 * @param target - not closed
+	 * @return number of bytes copied
+	 * @throws SshSessionlException
+	 */
+	public long copyTo(OutputStream target) throws SshSessionlException {
+		byte[] buf = new byte[32 * 1024];
+		long total = 0;
+		try {
+			int len;
+			while ((len = in.read(buf)) != -1) {
+				target.write(buf, 0, len);
+				total += len;
+			}
+		} catch (IOException e) {
+			throw new SshSessionlException(timeout.get() != null ? timeout.get() : e.getMessage(), e);
+		}
+		return total;
+	}
+
+	/**
+	 * Waits for the command to complete. To be called once the output has been consumed.
+	 *
+	 * @return exit status of the command
+	 * @throws SshSessionlException if the command timed out
+	 */
+	public int getExitStatus() throws SshSessionlException {
+		channel.waitFor(EnumSet.of(ClientChannelEvent.CLOSED, ClientChannelEvent.EXIT_STATUS), 0L);
+		watchdog.stop();
+		if (timeout.get() != null) {
+			throw new SshSessionlException(timeout.get());
+		}
+		Integer status = channel.getExitStatus();
+		if (status == null) {
+			LOG.warn("Command '" + cmd.getCommandLine() + "' did not return an exit status. Exit signal: " + channel.getExitSignal());
+			return Constants.FAILURE;
+		}
+		return status;
+	}
+
+	/**
+	 * Standard error of the command, at most the first 64 KB.
+	 */
+	public String getErrorOutput() {
+		return err.toString();
+	}
+
+	@Override
+	public void close() {
+		watchdog.stop();
+		Utils.closeQuietly(reader);
+		channel.close(false);
+	}
+
+	/**
+	 * Lets the inactivity timeout only run while a read waits for the server, so that a slow consumer is not mistaken
+	 * for an inactive command.
+	 */
+	private static final class ActivityInputStream extends FilterInputStream {
+		private final CommandWatchdog watchdog;
+
+		private ActivityInputStream(InputStream in, CommandWatchdog watchdog) {
+			super(in);
+			this.watchdog = watchdog;
+		}
+
+		@Override
+		public int read() throws IOException {
+			watchdog.resumeInactivity();
+			try {
+				return super.read();
+			} finally {
+				watchdog.suspendInactivity();
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			watchdog.resumeInactivity();
+			try {
+				return super.read(b, off, len);
+			} finally {
+				watchdog.suspendInactivity();
+			}
+		}
+	}
+
+	/**
+	 * Decompresses gzip output. The header is only read on the first read, so that creating it does not wait for the
+	 * command.
+	 */
+	private static final class GunzipInputStream extends InputStream {
+		private final InputStream compressed;
+		private InputStream in;
+
+		private GunzipInputStream(InputStream compressed) {
+			this.compressed = compressed;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return stream().read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return stream().read(b, off, len);
+		}
+
+		private InputStream stream() throws IOException {
+			if (in == null) {
+				in = new GZIPInputStream(compressed, 32 * 1024);
+			}
+			return in;
+		}
+
+		@Override
+		public void close() throws IOException {
+			compressed.close();
+		}
+	}
+
+	/**
+	 * Keeps the beginning of the standard error and drops the rest, so that a chatty command cannot fill the memory.
+	 */
+	static final class BoundedOutputStream extends OutputStream {
+		private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			int keep = Math.min(len, MAX_ERROR_OUTPUT - buf.size());
+			if (keep > 0) {
+				buf.write(b, off, keep);
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			return new String(buf.toByteArray(), SshHelper.UTF8);
+		}
+	}
+}
@@ -0,0 +1,399 @@
+package com.thetechnovator.ssh;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.sshd.client.subsystem.sftp.SftpClient;
+import org.apache.sshd.client.subsystem.sftp.SftpClient.Attributes;
+import org.apache.sshd.client.subsystem.sftp.SftpClient.CloseableHandle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transfers large files in ranges over several SFTP channels at the same time. Every channel has its own flow control
+ * window, so the throughput is no longer limited to one window per round trip.
+ *
+ * Completed ranges are recorded in a state file. When a transfer fails it can be started again with the same arguments,
+ * and only the ranges not yet confirmed are transferred. A download is written to '&lt;file&gt;.part', preallocated to
+ * the full size, and renamed when complete; its state file is kept next to it. The state of an upload is kept in the
+ * state directory, see {@link Builder#stateDir(File)}.
+ *
+ * This object can be constructed intuitively using the {@link Builder}.
+ *
+ * @author JogaSingh
+ *
+ */
+public class ParallelFileTransfer {
+	private static final Logger LOG = LoggerFactory.getLogger(ParallelFileTransfer.class);
+	public static final int DEFAULT_PARALLELISM = 4;
+	public static final long DEFAULT_RANGE_SIZE = 16 * 1024 * 1024; // 16 MB
+	private static final String PART_SUFFIX = ".part";
+	private static final String STATE_SUFFIX = ".state";
+
+	private SshSession session;
+	private int parallelism = DEFAULT_PARALLELISM;
+	private long rangeSize = DEFAULT_RANGE_SIZE;
+	private File stateDir = new File(System.getProperty("java.io.tmpdir"), "ssh-transfer-state");
+
+	private ParallelFileTransfer() {
+
+	}
+
+	/**
+	 * Downloads the remote file, resuming a previous attempt if its state file is found and the remote file has not
+	 * changed in the meantime.
+	 *
+	 * @param remotePath
+	 * @param localFile
+	 * @throws SshSessionlException if a range could not be transferred. The confirmed ranges are kept for the next attempt.
+	 */
+	public void download(String remotePath, File localFile) throws SshSessionlException {
+		Attributes attrs;
+		try (SftpFileOperations sftp = new SftpFileOperations(session)) {
+			attrs = sftp.getClient().stat(remotePath);
+		} catch (IOException e) {
+			throw new SshSessionlException("SFTP error: " + remotePath + ": " + e.getMessage(), e);
+		}
+		long size = attrs.getSize();
+		long modified = attrs.getModifyTime() != null ? attrs.getModifyTime().toMillis() : 0;
+		File partFile = new File(localFile.getPath() + PART_SUFFIX);
+		File stateFile = new File(partFile.getPath() + STATE_SUFFIX);
+		TransferState state = TransferState.load(stateFile, size, modified, rangeSize);
+		if (state.isEmpty() || !partFile.exists()) {
+			state = TransferState.create(stateFile, size, modified, rangeSize);
+		}
+		LOG.info("Downloading " + remotePath + " (" + size + " bytes), " + state.getCompleted() + " of " + state.getRangeCount() + " ranges already done");
+		try (RandomAccessFile file = new RandomAccessFile(partFile, "rw")) {
+			// preallocated, so that the ranges can be written in any order
+			file.setLength(size);
+			FileChannel target = file.getChannel();
+			transfer(state, (sftp, handles, range) -> {
+				long offset = range * rangeSize;
+				CloseableHandle handle = handles.open(sftp, remotePath, SftpClient.OpenMode.Read);
+				sftp.read(handle, offset, Math.min(rangeSize, size - offset), LocalFileAccess.channelSink(target));
+			});
+			target.force(false);
+		} catch (IOException e) {
+			throw new SshSessionlException("Error writing " + partFile + ": " + e.getMessage(), e);
+		}
+		state.delete();
+		if (localFile.exists() && !localFile.delete()) {
+			throw new SshSessionlException("Cannot replace " + localFile);
+		}
+		if (!partFile.renameTo(localFile)) {
+			throw new SshSessionlException("Cannot rename " + partFile + " to " + localFile);
+		}
+	}
+
+	/**
+	 * Uploads the local file, resuming a previous attempt to the same remote path if the local file has not changed in
+	 * the meantime and the remote file still looks like the partial upload.
+	 *
+	 * @param localFile
+	 * @param remotePath
+	 * @throws SshSessionlException if a range could not be transferred. The confirmed ranges are kept for the next attempt.
+	 */
+	public void upload(File localFile, String remotePath) throws SshSessionlException {
+		long size = localFile.length();
+		if (!stateDir.isDirectory() && !stateDir.mkdirs()) {
+			throw new SshSessionlException("Cannot create transfer state directory " + stateDir);
+		}
+		String key = localFile.getAbsolutePath() + "\n" + session.getHost() + ":" + session.getPort() + ":" + remotePath;
+		File stateFile = new File(stateDir, localFile.getName() + ".upload-" + Utils.sha256Hex(key).substring(0, 16) + STATE_SUFFIX);
+		TransferState state = TransferState.load(stateFile, size, localFile.lastModified(), rangeSize);
+		try (SftpFileOperations sftp = new SftpFileOperations(session)) {
+			boolean resume = !state.isEmpty() && isPartialUpload(sftp.stat(remotePath), state, size);
+			if (!state.isEmpty() && !resume) {
+				LOG.info("Remote file " + remotePath + " has changed since the previous attempt, uploading it again");
+			}
+			if (!resume) {
+				state.close();
+				state = TransferState.create(stateFile, size, localFile.lastModified(), rangeSize);
+				// start with an empty file, ranges are written into it at their offsets
+				sftp.getClient().open(remotePath, SftpClient.OpenMode.Write, SftpClient.OpenMode.Create, SftpClient.OpenMode.Truncate).close();
+			}
+		} catch (IOException e) {
+			throw new SshSessionlException("SFTP error: " + remotePath + ": " + e.getMessage(), e);
+		}
+		LOG.info("Uploading " + localFile + " (" + size + " bytes), " + state.getCompleted() + " of " + state.getRangeCount() + " ranges already done");
+		try (RandomAccessFile file = new RandomAccessFile(localFile, "r")) {
+			FileChannel source = file.getChannel();
+			transfer(state, (sftp, handles, range) -> {
+				long offset = range * rangeSize;
+				CloseableHandle handle = handles.open(sftp, remotePath, SftpClient.OpenMode.Write);
+				sftp.write(handle, offset, Math.min(rangeSize, size - offset), LocalFileAccess.channelSource(source));
+			});
+		} catch (IOException e) {
+			throw new SshSessionlException("Error reading " + localFile + ": " + e.getMessage(), e);
+		}
+		state.delete();
+	}
+
+	/**
+	 * The confirmed ranges can only be trusted if the remote file still covers them and has not grown beyond the local
+	 * file, otherwise it was replaced or truncated in the meantime.
+	 */
+	private boolean isPartialUpload(RemoteFile remote, TransferState state, long size) {
+		return remote != null && !remote.isDirectory() && remote.getSize() >= state.getConfirmedLength(size) && remote.getSize() <= size;
+	}
+
+	/**
+	 * Runs 'parallelism' workers, each with its own SFTP channel, which take the open ranges from a shared queue. After
+	 * the first failure no more ranges are started.
+	 */
+	private void transfer(TransferState state, RangeTask task) throws SshSessionlException {
+		ConcurrentLinkedQueue<Long> ranges = new ConcurrentLinkedQueue<>();
+		for (long range = 0; range < state.getRangeCount(); range++) {
+			if (!state.isDone(range)) {
+				ranges.add(range);
+			}
+		}
+		if (ranges.isEmpty()) {
+			return;
+		}
+		AtomicBoolean failed = new AtomicBoolean();
+		int workers = Math.min(parallelism, ranges.size());
+		ExecutorService executor = Executors.newFixedThreadPool(workers, r -> {
+			Thread t = new Thread(r, "ssh-file-transfer");
+			t.setDaemon(true);
+			return t;
+		});
+		List<Future<Void>> futures = new ArrayList<>();
+		for (int i = 0; i < workers; i++) {
+			futures.add(executor.submit(() -> {
+				try (SftpFileOperations sftp = new SftpFileOperations(session); HandleHolder handles = new HandleHolder()) {
+					Long range;
+					while (!failed.get() && (range = ranges.poll()) != null) {
+						task.transfer(sftp, handles, range);
+						state.markDone(range);
+					}
+				} catch (SshSessionlException | IOException | RuntimeException e) {
+					failed.set(true);
+					throw e;
+				}
+				return null;
+			}));
+		}
+		executor.shutdown();
+		SshSessionlException error = null;
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (error == null) {
+					Throwable cause = e.getCause();
+					error = new SshSessionlException("Transfer failed after " + state.getCompleted() + " of " + state.getRangeCount() + " ranges, it can be resumed: "
+							+ cause.getMessage(), cause);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failed.set(true);
+				error = new SshSessionlException("Interrupted while transferring", e);
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private interface RangeTask {
+		void transfer(SftpFileOperations sftp, HandleHolder handles, long range) throws IOException;
+	}
+
+	/**
+	 * Keeps the handle of a worker open for all its ranges.
+	 */
+	private static final class HandleHolder implements AutoCloseable {
+		private CloseableHandle handle;
+
+		private CloseableHandle open(SftpFileOperations sftp, String path, SftpClient.OpenMode mode) throws IOException {
+			if (handle == null) {
+				handle = sftp.getClient().open(path, mode);
+			}
+			return handle;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (handle != null) {
+				handle.close();
+			}
+		}
+	}
+
+	/**
+	 * Completed ranges, persisted as one line per range after a header identifying the file version and range size.
+	 */
+	static final class TransferState {
+		private final File file;
+		private final long rangeCount;
+		private final long rangeSize;
+		private final BitSet done = new BitSet();
+		private OutputStream out;
+
+		private TransferState(File file, long size, long rangeSize) {
+			this.file = file;
+			this.rangeCount = Math.max(1, (size + rangeSize - 1) / rangeSize);
+			this.rangeSize = rangeSize;
+		}
+
+		static TransferState create(File file, long size, long modified, long rangeSize) throws SshSessionlException {
+			TransferState state = new TransferState(file, size, rangeSize);
+			try {
+				state.out = new FileOutputStream(file);
+				state.out.write((header(size, modified, rangeSize) + "\n").getBytes());
+				state.out.flush();
+			} catch (IOException e) {
+				throw new SshSessionlException("Error writing transfer state " + file + ": " + e.getMessage(), e);
+			}
+			return state;
+		}
+
+		/**
+		 * Loads the state of a previous attempt. Returns an empty state if there is none or it was for another version of
+		 * the file.
+		 */
+		static TransferState load(File file, long size, long modified, long rangeSize) throws SshSessionlException {
+			TransferState state = new TransferState(file, size, rangeSize);
+			if (!file.exists()) {
+				return state;
+			}
+			try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+				if (!header(size, modified, rangeSize).equals(reader.readLine())) {
+					return state;
+				}
+				String line;
+				while ((line = reader.readLine()) != null) {
+					// a line cut by a crash is ignored, the range is transferred again
+					if (line.matches("\\d+")) {
+						state.done.set(Integer.parseInt(line));
+					}
+				}
+				state.out = new FileOutputStream(file, true);
+			} catch (IOException e) {
+				throw new SshSessionlException("Error reading transfer state " + file + ": " + e.getMessage(), e);
+			}
+			return state;
+		}
+
+		private static String header(long size, long modified, long rangeSize) {
+			return "size=" + size + " modified=" + modified + " range=" + rangeSize;
+		}
+
+		boolean isEmpty() {
+			return out == null;
+		}
+
+		long getRangeCount() {
+			return rangeCount;
+		}
+
+		synchronized int getCompleted() {
+			return done.cardinality();
+		}
+
+		/**
+		 * Length of the file up to the end of the last confirmed range.
+		 */
+		synchronized long getConfirmedLength(long size) {
+			return Math.min(size, done.length() * rangeSize);
+		}
+
+		synchronized boolean isDone(long range) {
+			return done.get((int) range);
+		}
+
+		synchronized void markDone(long range) throws IOException {
+			done.set((int) range);
+			out.write((range + "\n").getBytes());
+			out.flush();
+		}
+
+		synchronized void close() {
+			Utils.closeQuietly(out);
+		}
+
+		synchronized void delete() {
+			close();
+			if (!file.delete()) {
+				LOG.warn("Could not delete transfer state " + file);
+			}
+		}
+	}
+
+	/**
+	 * Builder for ParallelFileTransfer
+	 *
+	 * @author JogaSingh
+	 *
+	 */
+	public static class Builder {
+		private ParallelFileTransfer transfer = new ParallelFileTransfer();
+
+		public static Builder getInstance() {
+			return new Builder();
+		}
+
+		/**
+		 * Connected session, every worker opens its own SFTP channel on it.
+		 */
+		public Builder session(SshSession session) {
+			transfer.session = session;
+			return this;
+		}
+
+		/**
+		 * Number of ranges transferred at the same time, each over its own channel. Default is
+		 * {@value ParallelFileTransfer#DEFAULT_PARALLELISM}.
+		 */
+		public Builder parallelism(int parallelism) {
+			if (parallelism < 1) {
+				throw new IllegalArgumentException("parallelism must be at least 1");
+			}
+			transfer.parallelism = parallelism;
+			return this;
+		}
+
+		/**
+		 * Size of a range, the unit which is confirmed and resumed. Default is 16 MB.
+		 */
+		public Builder rangeSize(long rangeSize) {
+			if (rangeSize < 1) {
+				throw new IllegalArgumentException("rangeSize must be at least 1");
+			}
+			transfer.rangeSize = rangeSize;
+			return this;
+		}
+
+		/**
+		 * Directory of the state files of uploads, so that the directory of the local file is not written to. Default is
+		 * 'ssh-transfer-state' in the temporary directory.
+		 */
+		public Builder stateDir(File stateDir) {
+			transfer.stateDir = stateDir;
+			return this;
+		}
+
+		public ParallelFileTransfer build() {
+			if (transfer.session == null) {
+				throw new IllegalArgumentException("session is required");
+			}
+			return transfer;
+		}
+	}
+}
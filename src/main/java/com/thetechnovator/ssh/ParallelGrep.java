@@ -0,0 +1,367 @@
+package com.thetechnovator.ssh;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.commons.io.LineIterator;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Searches many remote files at once. The files are split into groups of about the same total size, and every group is
+ * searched by one 'grep' in its own exec channel, so that large sets of rotated logs are searched by several remote
+ * processes at the same time.
+ *
+ * Every match carries its file and line number. The matches are passed to the consumer one at a time, in the
+ * {@link GrepOrder} chosen. For the ordered modes, the groups are contiguous in that order: the first group is passed
+ * while it is being searched, and the output of the following ones is buffered until their turn, in memory and beyond a
+ * few megabytes in a temporary file.
+ *
+ * Files ending with '.gz' are decompressed on the remote host. The remote host needs GNU grep. Files are read as the
+ * connected user.
+ *
+ * This object can be constructed intuitively using the {@link Builder}.
+ *
+ * @author JogaSingh
+ *
+ */
+public class ParallelGrep {
+	private static final Logger LOG = LoggerFactory.getLogger(ParallelGrep.class);
+	public static final int DEFAULT_PARALLELISM = 4;
+	// keeps command lines well below the argument limit of the remote host
+	private static final int MAX_ARGS_LENGTH = 64 * 1024;
+
+	private SshSession session;
+	private int parallelism = DEFAULT_PARALLELISM;
+	private GrepOrder order = GrepOrder.PATH;
+	private boolean ignoreCase = false;
+	private boolean fixedStrings = false;
+
+	private ParallelGrep() {
+
+	}
+
+	/**
+	 * Searches the files for the pattern.
+	 *
+	 * @param pattern  - basic regular expression, or text with {@link Builder#fixedStrings(boolean)}
+	 * @param files    - e.g. from {@link SshHelper#findFiles(String, String, String)}, directories are skipped
+	 * @param consumer - called with every match, one call at a time
+	 * @return number of matches
+	 * @throws SshSessionlException if a file cannot be read
+	 */
+	public long grep(String pattern, List<RemoteFile> files, Consumer<GrepMatch> consumer) throws SshSessionlException {
+		List<RemoteFile> sorted = new ArrayList<>();
+		for (RemoteFile file : files) {
+			if (!file.isDirectory()) {
+				sorted.add(file);
+			}
+		}
+		if (order == GrepOrder.MODIFIED) {
+			sorted.sort(Comparator.comparingLong(RemoteFile::getModifiedTimeMillis).thenComparing(RemoteFile::getAbsolutePath));
+		} else {
+			sorted.sort(Comparator.comparing(RemoteFile::getAbsolutePath));
+		}
+		List<Group> groups = split(sorted);
+		if (groups.isEmpty()) {
+			return 0;
+		}
+		AtomicLong matches = new AtomicLong();
+		Object consumerLock = new Object();
+		Consumer<String> deliver = line -> {
+			GrepMatch match = parse(line);
+			if (match != null) {
+				synchronized (consumerLock) {
+					consumer.accept(match);
+				}
+				matches.incrementAndGet();
+			}
+		};
+		if (order == GrepOrder.ARRIVAL) {
+			for (Group group : groups) {
+				group.live = true;
+			}
+		}
+		AtomicBoolean failed = new AtomicBoolean();
+		ExecutorService executor = Executors.newFixedThreadPool(groups.size(), r -> {
+			Thread t = new Thread(r, "ssh-parallel-grep");
+			t.setDaemon(true);
+			return t;
+		});
+		List<Future<Void>> futures = new ArrayList<>();
+		for (Group group : groups) {
+			futures.add(executor.submit(() -> {
+				try {
+					search(group, pattern, deliver, failed);
+				} catch (SshSessionlException | RuntimeException e) {
+					failed.set(true);
+					throw e;
+				}
+				return null;
+			}));
+		}
+		executor.shutdown();
+		SshSessionlException error = null;
+		try {
+			for (int i = 0; i < groups.size(); i++) {
+				Group group = groups.get(i);
+				if (error == null && !group.live) {
+					try {
+						group.goLive(deliver);
+					} catch (IOException | RuntimeException e) {
+						failed.set(true);
+						error = new SshSessionlException("Grep failed: " + e.getMessage(), e);
+					}
+				}
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException e) {
+					if (error == null) {
+						error = new SshSessionlException("Grep failed after " + matches.get() + " matches: " + e.getCause().getMessage(), e.getCause());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					failed.set(true);
+					error = new SshSessionlException("Interrupted while searching", e);
+					break;
+				}
+			}
+		} finally {
+			for (Group group : groups) {
+				group.buffer.close();
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+		LOG.debug(matches.get() + " matches in " + sorted.size() + " files");
+		return matches.get();
+	}
+
+	private void search(Group group, String pattern, Consumer<String> deliver, AtomicBoolean failed) throws SshSessionlException {
+		for (String command : commands(group.files, pattern)) {
+			try (OutputLines lines = session.lines(new SshCommand(command, null, false))) {
+				String line;
+				while (!failed.get() && (line = lines.readLine()) != null) {
+					group.add(line, deliver);
+				}
+				if (failed.get()) {
+					return;
+				}
+				int status = lines.getExitStatus();
+				String error = errors(lines.getErrorOutput());
+				// 1 only means that nothing matched, errors of single files leave the status of the last command
+				if (status < 0 || status > 1 || !error.isEmpty()) {
+					throw new SshSessionlException("Error searching files: " + (error.isEmpty() ? "status " + status : error));
+				}
+			} catch (IOException e) {
+				throw new SshSessionlException("Error buffering matches: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Commands searching the files in their order. Plain files are passed to one 'grep' as long as the command line is
+	 * short enough, compressed files are decompressed one by one.
+	 */
+	List<String> commands(List<RemoteFile> files, String pattern) {
+		StringBuilder grep = new StringBuilder("grep -H -n -Z");
+		if (ignoreCase) {
+			grep.append(" -i");
+		}
+		if (fixedStrings) {
+			grep.append(" -F");
+		}
+		String options = grep.append(" -e ").append(Utils.shellQuote(pattern)).toString();
+		List<String> commands = new ArrayList<>();
+		StringBuilder cmd = new StringBuilder();
+		boolean plain = false;
+		for (RemoteFile file : files) {
+			String path = Utils.shellQuote(file.getAbsolutePath());
+			if (cmd.length() > MAX_ARGS_LENGTH) {
+				commands.add(cmd.toString());
+				cmd.setLength(0);
+				plain = false;
+			}
+			if (file.getAbsolutePath().endsWith(".gz")) {
+				if (cmd.length() > 0) {
+					cmd.append("; ");
+				}
+				// the label is printed as the file name of standard input
+				cmd.append("gzip -dc -- ").append(path).append(" | ").append(options).append(" --label=").append(path);
+				plain = false;
+			} else {
+				if (!plain) {
+					if (cmd.length() > 0) {
+						cmd.append("; ");
+					}
+					cmd.append(options).append(" --");
+					plain = true;
+				}
+				cmd.append(' ').append(path);
+			}
+		}
+		if (cmd.length() > 0) {
+			commands.add(cmd.toString());
+		}
+		return commands;
+	}
+
+	/**
+	 * Contiguous groups of the files with about the same total size. Every file counts at least one byte, so that empty
+	 * or unknown sizes are spread as well.
+	 */
+	List<Group> split(List<RemoteFile> files) {
+		long total = 0;
+		for (RemoteFile file : files) {
+			total += Math.max(1, file.getSize());
+		}
+		long target = total / parallelism + 1;
+		List<Group> groups = new ArrayList<>();
+		Group group = null;
+		long size = 0;
+		for (RemoteFile file : files) {
+			if (group == null || (size >= target && groups.size() < parallelism)) {
+				group = new Group();
+				groups.add(group);
+				size = 0;
+			}
+			group.files.add(file);
+			size += Math.max(1, file.getSize());
+		}
+		return groups;
+	}
+
+	/**
+	 * Parses a line of 'grep -H -n -Z': the path, a NUL, the line number, a colon and the line.
+	 */
+	static GrepMatch parse(String line) {
+		int nul = line.indexOf('\0');
+		int colon = line.indexOf(':', nul + 1);
+		if (nul < 0 || colon < 0) {
+			LOG.debug("Skipping grep output: " + line);
+			return null;
+		}
+		try {
+			return new GrepMatch(line.substring(0, nul), Long.parseLong(line.substring(nul + 1, colon)), line.substring(colon + 1));
+		} catch (NumberFormatException e) {
+			LOG.debug("Skipping grep output: " + line);
+			return null;
+		}
+	}
+
+	/**
+	 * Standard error without the notices about binary files, which are not errors.
+	 */
+	private static String errors(String errorOutput) {
+		List<String> errors = new ArrayList<>();
+		for (String line : StringUtils.split(errorOutput, '\n')) {
+			if (!line.trim().isEmpty() && !line.endsWith("binary file matches")) {
+				errors.add(line.trim());
+			}
+		}
+		return StringUtils.join(errors, "; ");
+	}
+
+	/**
+	 * Files searched by one command, with the matches waiting for their turn.
+	 */
+	static final class Group {
+		private final List<RemoteFile> files = new ArrayList<>();
+		private final OutputCapture buffer = new OutputCapture();
+		private boolean live = false;
+
+		synchronized void add(String line, Consumer<String> deliver) throws IOException {
+			if (live) {
+				deliver.accept(line);
+			} else {
+				buffer.write((line + "\n").getBytes(SshHelper.UTF8));
+			}
+		}
+
+		/**
+		 * Passes the buffered matches, and the following ones as they arrive.
+		 */
+		synchronized void goLive(Consumer<String> deliver) throws IOException {
+			buffer.flush();
+			try (LineIterator it = buffer.lineIterator(SshHelper.UTF8)) {
+				while (it.hasNext()) {
+					deliver.accept(it.nextLine());
+				}
+			}
+			buffer.close();
+			live = true;
+		}
+	}
+
+	/**
+	 * Builder for ParallelGrep
+	 *
+	 * @author JogaSingh
+	 *
+	 */
+	public static class Builder {
+		private ParallelGrep grep = new ParallelGrep();
+
+		public static Builder getInstance() {
+			return new Builder();
+		}
+
+		/**
+		 * Connected session. The search uses up to 'parallelism' exec channels of it at the same time.
+		 */
+		public Builder session(SshSession session) {
+			grep.session = session;
+			return this;
+		}
+
+		/**
+		 * Maximum number of files searched at the same time. Default is {@value ParallelGrep#DEFAULT_PARALLELISM}.
+		 */
+		public Builder parallelism(int parallelism) {
+			if (parallelism < 1) {
+				throw new IllegalArgumentException("parallelism must be at least 1");
+			}
+			grep.parallelism = parallelism;
+			return this;
+		}
+
+		/**
+		 * Order of the matches. Default is {@link GrepOrder#PATH}.
+		 */
+		public Builder order(GrepOrder order) {
+			grep.order = order;
+			return this;
+		}
+
+		public Builder ignoreCase(boolean ignoreCase) {
+			grep.ignoreCase = ignoreCase;
+			return this;
+		}
+
+		/**
+		 * Whether the pattern is a text to find instead of a regular expression. Default is 'false'.
+		 */
+		public Builder fixedStrings(boolean fixedStrings) {
+			grep.fixedStrings = fixedStrings;
+			return this;
+		}
+
+		public ParallelGrep build() {
+			if (grep.session == null) {
+				throw new IllegalArgumentException("session is required");
+			}
+			return grep;
+		}
+	}
+}
@@ -66,7 +66,7 @@ public  abstract class PasswordInputCommand extends AbstractCommandExecutor {
 								getSession().close();
 								throw new SshSessionlException("No password provider given");
 							}
-							flushBufferQuiet(getIn());
+							discardPendingOutput();
 							sb.delete(0, sb.length());
 							passwordSent = true;
 							sendCommand(passwordProvider.getPassword());
@@ -83,7 +83,8 @@ public  abstract class PasswordInputCommand extends AbstractCommandExecutor {
 				}
 			}
 		};
-		String command=cmd.getCommandLine();
+		//the start marker lets the reader skip the echo and any prompt left over from the previous command
+		String command=getCommandWithStartMarker(cmd.getCommandLine());
 		sendCommand(command);
 		return reader.readCommandOutput(command);
 	}
@@ -1,13 +1,24 @@
 package com.thetechnovator.ssh;
 
+import java.time.Instant;
 import java.util.Date;
 
 public class RemoteFile {
+	/**
+	 * Value of {@link #getModifiedTimeMillis()} when the time is not known.
+	 */
+	public static final long UNKNOWN_TIME = Long.MIN_VALUE;
 	private String absolutePath;
 	private long size;
-	private Date modifiedTime;
+	private long modifiedTime;
 	private boolean isDirectory;
 	public RemoteFile(String absolutePath, long size, Date modifiedTime,boolean isDirector) {
+		this(absolutePath, size, modifiedTime != null ? modifiedTime.getTime() : UNKNOWN_TIME, isDirector);
+	}
+	/**
+	 * @param modifiedTime - milliseconds since the epoch, or {@link #UNKNOWN_TIME}
+	 */
+	public RemoteFile(String absolutePath, long size, long modifiedTime,boolean isDirector) {
 		super();
 		this.absolutePath = absolutePath;
 		this.size = size;
@@ -26,12 +37,30 @@ public class RemoteFile {
 	public void setSize(long size) {
 		this.size = size;
 	}
+	/**
+	 * @return a new Date, or 'null' when the time is not known
+	 */
 	public Date getModifiedTime() {
-		return modifiedTime;
+		return modifiedTime != UNKNOWN_TIME ? new Date(modifiedTime) : null;
 	}
 	public void setModifiedTime(Date modifiedTime) {
+		this.modifiedTime = modifiedTime != null ? modifiedTime.getTime() : UNKNOWN_TIME;
+	}
+	/**
+	 * @return milliseconds since the epoch, or {@link #UNKNOWN_TIME}
+	 */
+	public long getModifiedTimeMillis() {
+		return modifiedTime;
+	}
+	public void setModifiedTimeMillis(long modifiedTime) {
 		this.modifiedTime = modifiedTime;
 	}
+	/**
+	 * @return the modification time, or 'null' when it is not known
+	 */
+	public Instant getModifiedInstant() {
+		return modifiedTime != UNKNOWN_TIME ? Instant.ofEpochMilli(modifiedTime) : null;
+	}
 	public boolean isDirectory() {
 		return isDirectory;
 	}
@@ -40,7 +69,7 @@ public class RemoteFile {
 	}
 	@Override
 	public String toString() {
-		return "RemoteFile [absolutePath=" + absolutePath + ", size=" + size + ", modifiedTime=" + modifiedTime
+		return "RemoteFile [absolutePath=" + absolutePath + ", size=" + size + ", modifiedTime=" + getModifiedInstant()
 				+ ", isDirectory=" + isDirectory + "]";
 	}
 	
@@ -0,0 +1,492 @@
+package com.thetechnovator.ssh;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local index of the files below a remote directory, queried without contacting the remote host. Suited to large log
+ * trees which are searched often but change little between searches.
+ *
+ * The first {@link #refresh()} lists the whole tree with one 'find'. The following ones only list the entries modified
+ * since the previous refresh, plus the content of the directories modified since, which shows removed and renamed
+ * entries. Directories moved into the tree are listed completely.
+ *
+ * With an index file, the index is saved after every refresh and loaded when built again, so that a restarted process
+ * continues with incremental refreshes. The file holds the sorted paths with their common prefixes removed, compressed
+ * with gzip.
+ *
+ * The remote host needs GNU find and 'date'. Modification times are compared with the clock of the remote host.
+ *
+ * This object can be constructed intuitively using the {@link Builder}.
+ *
+ * @author JogaSingh
+ *
+ */
+public class RemoteFileIndex {
+	private static final Logger LOG = LoggerFactory.getLogger(RemoteFileIndex.class);
+	private static final int FORMAT_VERSION = 1;
+	// keeps command lines well below the argument limit of the remote host
+	private static final int MAX_ARGS_LENGTH = 64 * 1024;
+
+	private SshSession session;
+	private String root;
+	private File indexFile;
+	// relative path to entry, the root itself is ""
+	private final TreeMap<String, Entry> entries = new TreeMap<>();
+	// remote time in seconds from which on changes are not indexed yet, 0 before the first refresh
+	private long changedSince = 0;
+
+	private RemoteFileIndex() {
+
+	}
+
+	/**
+	 * Brings the index up to date with the remote tree, and saves it to the index file.
+	 *
+	 * @return number of entries added, changed or removed
+	 * @throws SshSessionlException if the tree cannot be listed. The index stays usable and the next refresh repeats
+	 *                              the changes.
+	 */
+	public synchronized int refresh() throws SshSessionlException {
+		long start = System.currentTimeMillis();
+		int changes;
+		long scanTime;
+		// the listings are applied only once all of them succeeded
+		if (changedSince == 0) {
+			TreeMap<String, Entry> scanned = new TreeMap<>();
+			scanTime = find("date +%s; find " + Utils.shellQuote(root) + FileListParser.FIND_PRINTF, scanned::put);
+			entries.clear();
+			entries.putAll(scanned);
+			changes = scanned.size();
+		} else {
+			// entries to put, 'null' for entries to remove
+			Map<String, Entry> updates = new HashMap<>();
+			List<String> changedDirs = new ArrayList<>();
+			scanTime = find("date +%s; find " + Utils.shellQuote(root) + " -newermt @" + changedSince + FileListParser.FIND_PRINTF, (path, entry) -> {
+				updates.put(path, entry);
+				if (entry.isDirectory()) {
+					changedDirs.add(path);
+				}
+			});
+			refreshDirs(changedDirs, updates);
+			changes = apply(updates);
+		}
+		// entries modified in the second of the scan may have been missed
+		changedSince = scanTime - 1;
+		save();
+		LOG.info("Indexed " + root + ": " + entries.size() + " entries, " + changes + " changes in " + Utils.msToNamedTimeInterval(System.currentTimeMillis() - start));
+		return changes;
+	}
+
+	/**
+	 * Lists the content of the modified directories, marks the entries which are not there anymore for removal and
+	 * lists the directories new to the index completely.
+	 */
+	private void refreshDirs(List<String> changedDirs, Map<String, Entry> updates) throws SshSessionlException {
+		if (changedDirs.isEmpty()) {
+			return;
+		}
+		Map<String, Set<String>> children = new HashMap<>();
+		for (String dir : changedDirs) {
+			children.put(dir, new HashSet<>());
+		}
+		Set<String> newDirs = new HashSet<>();
+		Map<String, Entry> found = new HashMap<>();
+		findForDirs(changedDirs, " -mindepth 1 -maxdepth 1", (path, entry) -> {
+			children.get(parentOf(path)).add(path);
+			found.put(path, entry);
+		});
+		for (Map.Entry<String, Entry> child : found.entrySet()) {
+			updates.put(child.getKey(), child.getValue());
+			if (child.getValue().isDirectory() && !entries.containsKey(child.getKey()) && !children.containsKey(child.getKey())) {
+				// moved into the tree, its content is as old as it was
+				newDirs.add(child.getKey());
+			}
+		}
+		for (String dir : changedDirs) {
+			Set<String> present = children.get(dir);
+			List<String> removed = new ArrayList<>();
+			for (String path : subTree(dir).keySet()) {
+				if (parentOf(path).equals(dir) && !present.contains(path)) {
+					removed.add(path);
+				}
+			}
+			for (String path : removed) {
+				for (String below : subTree(path).keySet()) {
+					updates.put(below, null);
+				}
+				updates.put(path, null);
+			}
+		}
+		if (!newDirs.isEmpty()) {
+			findForDirs(newDirs, " -mindepth 1", updates::put);
+		}
+	}
+
+	/**
+	 * @return number of entries added, changed or removed
+	 */
+	private int apply(Map<String, Entry> updates) {
+		int changes = 0;
+		for (Map.Entry<String, Entry> update : updates.entrySet()) {
+			Entry entry = update.getValue();
+			Entry old = entry != null ? entries.put(update.getKey(), entry) : entries.remove(update.getKey());
+			if (entry != null ? !entry.equals(old) : old != null) {
+				changes++;
+			}
+		}
+		return changes;
+	}
+
+	private void findForDirs(Collection<String> dirs, String options, EntryHandler handler) throws SshSessionlException {
+		StringBuilder cmd = new StringBuilder();
+		for (String dir : dirs) {
+			String arg = Utils.shellQuote(absolute(dir));
+			if (cmd.length() > 0 && cmd.length() + arg.length() > MAX_ARGS_LENGTH) {
+				find(cmd.append(options).append(FileListParser.FIND_PRINTF).toString(), handler);
+				cmd.setLength(0);
+			}
+			if (cmd.length() == 0) {
+				cmd.append("date +%s; find");
+			}
+			cmd.append(' ').append(arg);
+		}
+		find(cmd.append(options).append(FileListParser.FIND_PRINTF).toString(), handler);
+	}
+
+	/**
+	 * Runs a command printing the remote time on the first line, followed by the entries in the format of
+	 * {@link FileListParser#FIND_PRINTF}.
+	 *
+	 * @return the remote time in seconds
+	 */
+	private long find(String command, EntryHandler handler) throws SshSessionlException {
+		try (OutputLines output = session.lines(new SshCommand(command, null, false))) {
+			InputStream in = new BufferedInputStream(output.getInputStream());
+			String time = readRecord(in, '\n');
+			FileListParser.parseFind(in, (type, size, modified, absolutePath) -> {
+				String path = relative(absolutePath);
+				if (path == null) {
+					LOG.debug("Skipping path outside of " + root + ": " + absolutePath);
+					return;
+				}
+				handler.accept(path, new Entry(type, size, modified));
+			});
+			int status = output.getExitStatus();
+			String errors = output.getErrorOutput().trim();
+			if ((status != 0 && (status != 1 || !isSkippable(errors))) || time == null) {
+				throw new SshSessionlException("Error listing " + root + ": " + errors);
+			}
+			if (!errors.isEmpty()) {
+				LOG.debug("Skipped unreadable or vanished entries: " + errors);
+			}
+			return Long.parseLong(time.trim());
+		} catch (IOException | NumberFormatException e) {
+			throw new SshSessionlException("Error listing " + root + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * 'find' exits with 1 for unreadable directories and for entries removed while it runs, both routine in log trees.
+	 * A root which cannot be listed is an error.
+	 */
+	private boolean isSkippable(String errors) {
+		for (String line : StringUtils.split(errors, '\n')) {
+			line = line.trim();
+			// the path is quoted with ' or with the quotes of the locale
+			boolean rootError = line.contains("'" + root + "': ") || line.contains("\u2018" + root + "\u2019: ");
+			if (rootError || !(line.endsWith("Permission denied") || line.endsWith("No such file or directory"))) {
+				return false;
+			}
+		}
+		return !errors.isEmpty();
+	}
+
+	private static String readRecord(InputStream in, char end) throws IOException {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) != -1 && c != end) {
+			record.write(c);
+		}
+		if (c == -1 && record.size() == 0) {
+			return null;
+		}
+		return new String(record.toByteArray(), SshHelper.UTF8);
+	}
+
+	/**
+	 * Files whose path below the root matches the glob, e.g. '*.log' or 'app&#47;**&#47;*.gz'. A glob without '/' is
+	 * matched with the file name only, like 'find -name'.
+	 *
+	 * @param glob - 'null' for all files
+	 * @return matching files, sorted by path
+	 */
+	public List<RemoteFile> find(String glob) {
+		return find(glob, 0, Long.MAX_VALUE, null, null);
+	}
+
+	/**
+	 * Files whose path below the root matches the glob, of a size within the range and modified within the time range.
+	 *
+	 * @param glob            - see {@link #find(String)}, 'null' for all files
+	 * @param minSize         - in bytes, included
+	 * @param maxSize         - in bytes, included
+	 * @param modifiedFrom    - included, 'null' for no lower bound
+	 * @param modifiedBefore  - excluded, 'null' for no upper bound
+	 * @return matching files, sorted by path
+	 */
+	public synchronized List<RemoteFile> find(String glob, long minSize, long maxSize, Date modifiedFrom, Date modifiedBefore) {
+		PathMatcher matcher = glob != null ? FileSystems.getDefault().getPathMatcher("glob:" + glob) : null;
+		boolean byName = glob != null && glob.indexOf('/') < 0;
+		List<RemoteFile> files = new ArrayList<>();
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			Entry entry = e.getValue();
+			if (entry.isDirectory() || entry.size < minSize || entry.size > maxSize) {
+				continue;
+			}
+			if ((modifiedFrom != null && entry.modified < modifiedFrom.getTime()) || (modifiedBefore != null && entry.modified >= modifiedBefore.getTime())) {
+				continue;
+			}
+			if (matcher != null) {
+				Path path = Paths.get(e.getKey());
+				if (!matcher.matches(byName ? path.getFileName() : path)) {
+					continue;
+				}
+			}
+			files.add(new RemoteFile(absolute(e.getKey()), entry.size, entry.modified, false));
+		}
+		return files;
+	}
+
+	/**
+	 * Number of indexed files and directories.
+	 */
+	public synchronized int size() {
+		return entries.containsKey("") ? entries.size() - 1 : entries.size();
+	}
+
+	public String getRoot() {
+		return root;
+	}
+
+	/**
+	 * Saves the index to the index file, if any. Written to a temporary file first, so that a crash leaves the previous
+	 * index.
+	 */
+	private void save() throws SshSessionlException {
+		if (indexFile == null) {
+			return;
+		}
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))) {
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(session.getHost() + ":" + session.getPort() + ":" + root);
+			out.writeLong(changedSince);
+			out.writeInt(entries.size());
+			String previous = "";
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				String path = e.getKey();
+				int common = commonPrefix(previous, path);
+				out.writeShort(common);
+				out.writeUTF(path.substring(common));
+				out.writeByte(e.getValue().type);
+				out.writeLong(e.getValue().size);
+				out.writeLong(e.getValue().modified);
+				previous = path;
+			}
+		} catch (IOException e) {
+			throw new SshSessionlException("Cannot save the index of " + root + " to " + tmp + ": " + e.getMessage(), e);
+		}
+		indexFile.delete();
+		if (!tmp.renameTo(indexFile)) {
+			throw new SshSessionlException("Cannot rename " + tmp + " to " + indexFile);
+		}
+	}
+
+	/**
+	 * Loads the index file, if it exists and belongs to the same host and root.
+	 */
+	private void load() {
+		if (indexFile == null || !indexFile.isFile()) {
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(indexFile))))) {
+			if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(session.getHost() + ":" + session.getPort() + ":" + root)) {
+				LOG.info("Ignoring index file " + indexFile + " of another version or tree");
+				return;
+			}
+			long since = in.readLong();
+			int count = in.readInt();
+			String previous = "";
+			for (int i = 0; i < count; i++) {
+				int common = in.readUnsignedShort();
+				String path = previous.substring(0, common) + in.readUTF();
+				entries.put(path, new Entry((char) in.readByte(), in.readLong(), in.readLong()));
+				previous = path;
+			}
+			changedSince = since;
+			LOG.info("Loaded " + count + " entries of " + root + " from " + indexFile);
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Ignoring unreadable index file " + indexFile + ": " + e.getMessage());
+			entries.clear();
+		}
+	}
+
+	private static int commonPrefix(String s1, String s2) {
+		int max = Math.min(Math.min(s1.length(), s2.length()), 0xFFFF);
+		int i = 0;
+		while (i < max && s1.charAt(i) == s2.charAt(i)) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Entries below the directory, without the directory itself.
+	 */
+	private SortedMap<String, Entry> subTree(String dir) {
+		if (dir.isEmpty()) {
+			return entries.tailMap("", false);
+		}
+		// '/' + 1 is '0', so this range holds exactly the paths starting with 'dir/'
+		return entries.subMap(dir + "/", dir + "0");
+	}
+
+	private static String parentOf(String path) {
+		int slash = path.lastIndexOf('/');
+		return slash < 0 ? "" : path.substring(0, slash);
+	}
+
+	private String relative(String absolutePath) {
+		if (absolutePath.equals(root)) {
+			return "";
+		}
+		String prefix = root.endsWith("/") ? root : root + "/";
+		return absolutePath.startsWith(prefix) ? absolutePath.substring(prefix.length()) : null;
+	}
+
+	private String absolute(String path) {
+		if (path.isEmpty()) {
+			return root;
+		}
+		return root.endsWith("/") ? root + path : root + "/" + path;
+	}
+
+	@FunctionalInterface
+	private interface EntryHandler {
+		void accept(String path, Entry entry);
+	}
+
+	private static final class Entry {
+		private final char type;
+		private final long size;
+		private final long modified;
+
+		private Entry(char type, long size, long modified) {
+			this.type = type;
+			this.size = size;
+			this.modified = modified;
+		}
+
+		private boolean isDirectory() {
+			return type == 'd';
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Entry)) {
+				return false;
+			}
+			Entry other = (Entry) obj;
+			return type == other.type && size == other.size && modified == other.modified;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(modified) * 31 + Long.hashCode(size);
+		}
+	}
+
+	/**
+	 * Builder for RemoteFileIndex
+	 *
+	 * @author JogaSingh
+	 *
+	 */
+	public static class Builder {
+		private RemoteFileIndex index = new RemoteFileIndex();
+
+		public static Builder getInstance() {
+			return new Builder();
+		}
+
+		/**
+		 * Connected session.
+		 */
+		public Builder session(SshSession session) {
+			index.session = session;
+			return this;
+		}
+
+		/**
+		 * Absolute path of the remote directory to index.
+		 */
+		public Builder root(String root) {
+			index.root = root;
+			return this;
+		}
+
+		/**
+		 * Local file to keep the index in between runs. By default the index is only held in memory.
+		 */
+		public Builder indexFile(File indexFile) {
+			index.indexFile = indexFile;
+			return this;
+		}
+
+		/**
+		 * Builds the index and loads the index file, if it exists. Call {@link RemoteFileIndex#refresh()} to bring it up
+		 * to date.
+		 */
+		public RemoteFileIndex build() {
+			if (index.session == null || index.root == null) {
+				throw new IllegalArgumentException("session and root are required");
+			}
+			String root = index.root;
+			while (root.length() > 1 && root.endsWith("/")) {
+				root = root.substring(0, root.length() - 1);
+			}
+			index.root = root;
+			index.load();
+			return index;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package com.thetechnovator.ssh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Selection of lines from remote files, evaluated on the remote host. The filters are compiled into one pipeline of
+ * 'grep', 'awk', 'sort', 'uniq' and 'wc', and only its result is transferred: a count, the most frequent values of a
+ * field, or a limited number of lines. See {@link SshHelper#countLines(RemoteQuery)},
+ * {@link SshHelper#countBy(RemoteQuery, int, int)} and {@link SshHelper#selectLines(RemoteQuery, int)}.
+ *
+ * The files are given as path expressions like for the other methods of {@link SshHelper}, so wildcards are expanded
+ * by the remote shell. Files ending with '.gz' are decompressed. Patterns and values are quoted and passed literally.
+ *
+ * Time ranges compare the beginning of every line with the given bounds as text, which is correct for timestamps whose
+ * text order is their time order, e.g. ISO-8601 '2024-05-01T10:15:00' or '2024-05-01 10:15:00'.
+ *
+ * This object can be constructed intuitively using the {@link Builder}.
+ *
+ * @author JogaSingh
+ *
+ */
+public class RemoteQuery {
+	private static final Pattern COUNT_LINE = Pattern.compile("^\\s*(\\d+) (.*)$");
+
+	private List<String> files = new ArrayList<>();
+	// grep options and pattern of every filter, applied in order
+	private List<String[]> filters = new ArrayList<>();
+	private String from;
+	private String to;
+	private String fieldSeparator;
+
+	private RemoteQuery() {
+
+	}
+
+	/**
+	 * Command printing the number of selected lines.
+	 */
+	String countCommand() {
+		return pipeline() + " | wc -l";
+	}
+
+	/**
+	 * Command printing the distinct values of the field with their number of occurrences, the most frequent first, as
+	 * 'uniq -c' does.
+	 *
+	 * @param field - number of the field, starting with 1
+	 * @param limit - maximum number of values, 0 for all
+	 */
+	String countByCommand(int field, int limit) {
+		if (field < 1) {
+			throw new IllegalArgumentException("field must be at least 1");
+		}
+		StringBuilder cmd = new StringBuilder(pipeline());
+		cmd.append(" | ").append(awk("{ print $" + field + " }"));
+		// byte order is enough for counting and much faster than the collation of the locale
+		cmd.append(" | LC_ALL=C sort | LC_ALL=C uniq -c | LC_ALL=C sort -k1,1nr -k2");
+		if (limit > 0) {
+			cmd.append(" | head -n ").append(limit);
+		}
+		return cmd.toString();
+	}
+
+	/**
+	 * Command printing the first selected lines.
+	 *
+	 * @param limit - maximum number of lines, 0 for all
+	 */
+	String selectCommand(int limit) {
+		return limit > 0 ? pipeline() + " | head -n " + limit : pipeline();
+	}
+
+	/**
+	 * Parses a line of 'uniq -c'.
+	 */
+	static Count parseCount(String line) {
+		Matcher matcher = COUNT_LINE.matcher(line);
+		if (!matcher.matches()) {
+			// an empty field
+			return new Count("", Long.parseLong(line.trim()));
+		}
+		return new Count(matcher.group(2), Long.parseLong(matcher.group(1)));
+	}
+
+	private String pipeline() {
+		StringBuilder cmd = new StringBuilder();
+		String paths = StringUtils.join(files, ' ');
+		boolean gzip = false;
+		for (String file : files) {
+			gzip |= file.endsWith(".gz");
+		}
+		int next = 0;
+		if (gzip) {
+			// plain files are passed through unchanged
+			cmd.append("zcat -f -- ").append(paths);
+		} else if (filters.isEmpty()) {
+			cmd.append("cat -- ").append(paths);
+		} else {
+			// the first filter reads the files itself, which saves a process and a pipe
+			cmd.append(grep(filters.get(0))).append(" -h -- ").append(paths);
+			next = 1;
+		}
+		for (int i = next; i < filters.size(); i++) {
+			cmd.append(" | ").append(grep(filters.get(i)));
+		}
+		if (from != null || to != null) {
+			List<String> conditions = new ArrayList<>();
+			if (from != null) {
+				conditions.add("substr($0, 1, length(ENVIRON[\"QF\"])) >= ENVIRON[\"QF\"]");
+			}
+			if (to != null) {
+				conditions.add("substr($0, 1, length(ENVIRON[\"QT\"])) < ENVIRON[\"QT\"]");
+			}
+			cmd.append(" | ");
+			// the bounds are passed in the environment, 'awk -v' would interpret backslashes in them
+			if (from != null) {
+				cmd.append("QF=").append(Utils.shellQuote(from)).append(' ');
+			}
+			if (to != null) {
+				cmd.append("QT=").append(Utils.shellQuote(to)).append(' ');
+			}
+			cmd.append("awk '").append(StringUtils.join(conditions, " && ")).append("'");
+		}
+		return cmd.toString();
+	}
+
+	private static String grep(String[] filter) {
+		return "grep " + filter[0] + " -e " + Utils.shellQuote(filter[1]);
+	}
+
+	private String awk(String program) {
+		if (fieldSeparator == null) {
+			return "awk '" + program + "'";
+		}
+		return "QS=" + Utils.shellQuote(fieldSeparator) + " awk 'BEGIN { FS = ENVIRON[\"QS\"] } " + program + "'";
+	}
+
+	/**
+	 * Value of a field and the number of selected lines which have it.
+	 */
+	public static class Count {
+		private final String value;
+		private final long count;
+
+		Count(String value, long count) {
+			this.value = value;
+			this.count = count;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public String toString() {
+			return value + "=" + count;
+		}
+	}
+
+	/**
+	 * Builder for RemoteQuery
+	 *
+	 * @author JogaSingh
+	 *
+	 */
+	public static class Builder {
+		private RemoteQuery query = new RemoteQuery();
+
+		public static Builder getInstance() {
+			return new Builder();
+		}
+
+		/**
+		 * Remote file to read, may contain wildcards. Can be called for several files.
+		 */
+		public Builder file(String remotePathExpr) {
+			query.files.add(remotePathExpr);
+			return this;
+		}
+
+		/**
+		 * Keeps the lines matching the extended regular expression.
+		 */
+		public Builder matching(String regex) {
+			query.filters.add(new String[] { "-E", regex });
+			return this;
+		}
+
+		/**
+		 * Keeps the lines containing the text.
+		 */
+		public Builder containing(String text) {
+			query.filters.add(new String[] { "-F", text });
+			return this;
+		}
+
+		/**
+		 * Drops the lines matching the extended regular expression.
+		 */
+		public Builder notMatching(String regex) {
+			query.filters.add(new String[] { "-v -E", regex });
+			return this;
+		}
+
+		/**
+		 * Keeps the lines starting with a timestamp from 'from' included to 'to' excluded.
+		 *
+		 * @param from - lower bound, 'null' for none
+		 * @param to   - upper bound, 'null' for none
+		 */
+		public Builder between(String from, String to) {
+			query.from = from;
+			query.to = to;
+			return this;
+		}
+
+		/**
+		 * Separator of the fields used by {@link SshHelper#countBy(RemoteQuery, int, int)}, a character or an extended
+		 * regular expression. By default fields are separated by blanks.
+		 */
+		public Builder fieldSeparator(String fieldSeparator) {
+			query.fieldSeparator = fieldSeparator;
+			return this;
+		}
+
+		public RemoteQuery build() {
+			if (query.files.isEmpty()) {
+				throw new IllegalArgumentException("At least one file is required");
+			}
+			return query;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package com.thetechnovator.ssh;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the results of read-only {@link SshHelper} operations, for callers which ask the same questions again and
+ * again, like dashboards. Enabled with {@link SshHelper#setResultCache(ResultCache)}; one cache can be shared by the
+ * helpers of many hosts.
+ *
+ * Results are kept per host, user and arguments, for the time to live of their {@link Operation}. When the cache is
+ * full, the least recently used result is evicted. Changes made through a helper using the cache ('upload',
+ * 'createDir', 'removeFile', 'removeDir', 'sync') drop the results of the same host, for every user, whose path is the
+ * changed path, inside it or contains it. Changes made in any other way, e.g. by {@link SshHelper#execute(String)} or by other
+ * clients, are only seen when the results expire, or after {@link #invalidateAll()}.
+ *
+ * Paths are compared as given, so a path written differently (relative, with '..' or a symbolic link) is not
+ * recognized as the same path.
+ *
+ * This object can be constructed intuitively using the {@link Builder}.
+ *
+ * @author JogaSingh
+ *
+ */
+public class ResultCache {
+	private static final Logger LOG = LoggerFactory.getLogger(ResultCache.class);
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	public static final long DEFAULT_TTL = 10 * 1000; // 10 seconds
+	// wild cards and other characters from which on a path expression is interpreted by the shell
+	private static final String SHELL_CHARS = "*?[]{}~$`'\"\\ ;&|<>";
+
+	/**
+	 * Cached operations of {@link SshHelper}.
+	 */
+	public enum Operation {
+		LIST_FILES, FILE_EXISTS, FIND_FILES, TAIL
+	}
+
+	/**
+	 * Computes a result which is not cached.
+	 */
+	@FunctionalInterface
+	interface Loader<T> {
+		T load() throws SshSessionlException;
+	}
+
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+	private final Map<Operation, Long> ttls = new EnumMap<>(Operation.class);
+	private Map<String, Entry> entries;
+	// counts the invalidations per host, a result loaded while its host was invalidated may be stale
+	private final Map<String, Long> generations = new HashMap<>();
+	private long allGeneration;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	private ResultCache() {
+		for (Operation operation : Operation.values()) {
+			ttls.put(operation, DEFAULT_TTL);
+		}
+	}
+
+	/**
+	 * Returns the cached result, or loads and caches it. Two threads missing the same result at the same time both load
+	 * it.
+	 *
+	 * @param host      - host and port the result belongs to
+	 * @param user      - user the result was read as, the same command may see other files as another user
+	 * @param operation
+	 * @param args      - arguments which, together with the host, the user and the operation, identify the result
+	 * @param path      - remote path the result depends on, may contain wild cards
+	 * @param loader
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T get(String host, String user, Operation operation, String args, String path, Loader<T> loader) throws SshSessionlException {
+		long ttl = ttls.get(operation);
+		if (ttl <= 0) {
+			return loader.load();
+		}
+		String key = host + '\n' + user + '\n' + operation + '\n' + args;
+		long now = System.currentTimeMillis();
+		long generation;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.expiresAt > now) {
+				hits++;
+				return (T) entry.value;
+			}
+			if (entry != null) {
+				entries.remove(key);
+			}
+			misses++;
+			generation = generation(host);
+		}
+		T value = loader.load();
+		synchronized (this) {
+			// a change during the load may have happened after the remote host was read
+			if (generation == generation(host)) {
+				entries.put(key, new Entry(host, baseOf(path), value, System.currentTimeMillis() + ttl));
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Drops the results of all users of the host which depend on the path, because it was changed.
+	 */
+	synchronized void invalidate(String host, String path) {
+		generations.merge(host, 1L, Long::sum);
+		String changed = baseOf(path);
+		int count = 0;
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (entry.host.equals(host) && overlaps(entry.path, changed)) {
+				it.remove();
+				count++;
+			}
+		}
+		if (count > 0) {
+			LOG.debug("Invalidated " + count + " cached results for " + path);
+		}
+	}
+
+	/**
+	 * Drops all results.
+	 */
+	public synchronized void invalidateAll() {
+		allGeneration++;
+		entries.clear();
+	}
+
+	private long generation(String host) {
+		return allGeneration + generations.getOrDefault(host, 0L);
+	}
+
+	/**
+	 * Whether one path is the other or inside it.
+	 */
+	static boolean overlaps(String path1, String path2) {
+		return path1.equals(path2) || isInside(path1, path2) || isInside(path2, path1);
+	}
+
+	private static boolean isInside(String path, String dir) {
+		return dir.isEmpty() || dir.equals("/") || path.startsWith(dir + "/");
+	}
+
+	/**
+	 * Part of the path expression before the first character interpreted by the shell, cut to the last complete
+	 * directory. A trailing '/' is removed.
+	 */
+	static String baseOf(String pathExpr) {
+		String path = pathExpr.trim();
+		int special = StringUtils.indexOfAny(path, SHELL_CHARS);
+		if (special >= 0) {
+			path = path.substring(0, Math.max(0, path.lastIndexOf('/', special)));
+		}
+		while (path.length() > 1 && path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Number of results evicted because the cache was full.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Part of the lookups answered from the cache, from 0 to 1.
+	 */
+	public synchronized double getHitRatio() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	/**
+	 * Number of cached results, including expired ones not dropped yet.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ResultCache [size=" + entries.size() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", hitRatio="
+				+ String.format("%.2f", getHitRatio()) + "]";
+	}
+
+	private static final class Entry {
+		private final String host;
+		private final String path;
+		private final Object value;
+		private final long expiresAt;
+
+		private Entry(String host, String path, Object value, long expiresAt) {
+			this.host = host;
+			this.path = path;
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * Builder for ResultCache
+	 *
+	 * @author JogaSingh
+	 *
+	 */
+	public static class Builder {
+		private ResultCache cache = new ResultCache();
+
+		public static Builder getInstance() {
+			return new Builder();
+		}
+
+		/**
+		 * Maximum number of cached results. Default is {@value ResultCache#DEFAULT_MAX_ENTRIES}.
+		 */
+		public Builder maxEntries(int maxEntries) {
+			if (maxEntries < 1) {
+				throw new IllegalArgumentException("maxEntries must be at least 1");
+			}
+			cache.maxEntries = maxEntries;
+			return this;
+		}
+
+		/**
+		 * How long the results of the operation are used. 0 disables caching of the operation. Default is 10 seconds.
+		 */
+		public Builder ttlMs(Operation operation, long ttlMs) {
+			cache.ttls.put(operation, ttlMs);
+			return this;
+		}
+
+		public ResultCache build() {
+			int maxEntries = cache.maxEntries;
+			ResultCache resultCache = cache;
+			// access order makes the eldest entry the least recently used one
+			cache.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+					if (size() > maxEntries) {
+						resultCache.evictions++;
+						return true;
+					}
+					return false;
+				}
+			};
+			return cache;
+		}
+	}
+}
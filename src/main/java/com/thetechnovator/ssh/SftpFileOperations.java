@@ -0,0 +1,477 @@
+package com.thetechnovator.ssh;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.client.subsystem.sftp.RawSftpClient;
+import org.apache.sshd.client.subsystem.sftp.SftpClient;
+import org.apache.sshd.client.subsystem.sftp.SftpClient.Attributes;
+import org.apache.sshd.client.subsystem.sftp.SftpClient.CloseableHandle;
+import org.apache.sshd.client.subsystem.sftp.SftpClient.DirEntry;
+import org.apache.sshd.client.subsystem.sftp.SftpClientFactory;
+import org.apache.sshd.common.subsystem.sftp.SftpConstants;
+import org.apache.sshd.common.subsystem.sftp.SftpException;
+import org.apache.sshd.common.util.buffer.Buffer;
+import org.apache.sshd.common.util.buffer.ByteArrayBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * File operations over the SFTP subsystem of a session. File attributes are taken from the binary replies of the
+ * server, so nothing depends on the output format of 'ls' or on the locale of the host, and no shell is involved.
+ *
+ * Reads and writes are pipelined: several requests are kept outstanding, so that a transfer is not slowed down to one
+ * chunk per round trip. Downloads and uploads of local files copy the data directly between the SFTP packets and a
+ * memory mapping of the file, without intermediate buffers.
+ *
+ * Operations run as the connected user, a user switched to with 'su' or 'sudo' does not apply.
+ *
+ * @author JogaSingh
+ *
+ */
+public class SftpFileOperations implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(SftpFileOperations.class);
+	public static final int DEFAULT_CHUNK_SIZE = 32 * 1024;
+	public static final int DEFAULT_MAX_PENDING_REQUESTS = 16;
+
+	private final SftpClient client;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private int maxPendingRequests = DEFAULT_MAX_PENDING_REQUESTS;
+
+	/**
+	 * Opens the SFTP subsystem on the connected session.
+	 *
+	 * @param session - connected session
+	 * @throws SshSessionlException if the server does not provide the SFTP subsystem
+	 */
+	public SftpFileOperations(SshSession session) throws SshSessionlException {
+		if (!session.isOpen()) {
+			throw new SshSessionlException("Session is not connected. Call the 'connect' method first");
+		}
+		try {
+			this.client = SftpClientFactory.instance().createSftpClient(session.getClientSession());
+		} catch (IOException e) {
+			throw new SshSessionlException("SFTP error: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Size of each read request. Default is 32 KB, which every server accepts.
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Number of read or write requests kept outstanding while reading or writing a file. Default is 16.
+	 */
+	public void setMaxPendingRequests(int maxPendingRequests) {
+		this.maxPendingRequests = maxPendingRequests;
+	}
+
+	/**
+	 * Returns the attributes of the file or directory, following links.
+	 *
+	 * @param path
+	 * @return 'null' if the file does not exist
+	 * @throws SshSessionlException
+	 */
+	public RemoteFile stat(String path) throws SshSessionlException {
+		try {
+			return toRemoteFile(path, client.stat(path));
+		} catch (IOException e) {
+			if (isNoSuchFile(e)) {
+				return null;
+			}
+			throw error(path, e);
+		}
+	}
+
+	public boolean exists(String path) throws SshSessionlException {
+		return stat(path) != null;
+	}
+
+	/**
+	 * Sets the modification time, and the access time to the same value, like 'touch -d'.
+	 *
+	 * @param path
+	 * @param millis - time in milliseconds since the epoch
+	 * @throws SshSessionlException
+	 */
+	public void setModifiedTime(String path, long millis) throws SshSessionlException {
+		try {
+			client.setStat(path, new Attributes().accessTime(millis, TimeUnit.MILLISECONDS).modifyTime(millis, TimeUnit.MILLISECONDS));
+		} catch (IOException e) {
+			throw error(path, e);
+		}
+	}
+
+	/**
+	 * Lists the entries of a directory, or the file itself if the path is not a directory. Like 'ls -l', entries of a
+	 * directory are returned with their bare names, sorted by name, without hidden entries starting with '.'.
+	 *
+	 * @param path
+	 * @return
+	 * @throws SshSessionlException if the path does not exist
+	 */
+	public List<RemoteFile> listFiles(String path) throws SshSessionlException {
+		List<RemoteFile> list = new ArrayList<>();
+		RemoteFile file = stat(path);
+		if (file == null) {
+			throw new SshSessionlException("SFTP error: " + path + ": No such file or directory");
+		}
+		if (!file.isDirectory()) {
+			list.add(file);
+			return list;
+		}
+		try {
+			for (DirEntry entry : client.readDir(path)) {
+				String name = entry.getFilename();
+				if (name.startsWith(".")) {
+					continue;
+				}
+				list.add(toRemoteFile(name, entry.getAttributes()));
+			}
+		} catch (IOException e) {
+			throw error(path, e);
+		}
+		list.sort(Comparator.comparing(RemoteFile::getAbsolutePath));
+		return list;
+	}
+
+	/**
+	 * Creates the directory including the missing parent directories, like 'mkdir -p'.
+	 *
+	 * @param path
+	 * @throws SshSessionlException
+	 */
+	public void createDir(String path) throws SshSessionlException {
+		RemoteFile file = stat(path);
+		if (file != null) {
+			if (!file.isDirectory()) {
+				throw new SshSessionlException("SFTP error: " + path + ": File exists");
+			}
+			return;
+		}
+		int slash = path.lastIndexOf('/', path.endsWith("/") ? path.length() - 2 : path.length() - 1);
+		if (slash > 0) {
+			createDir(path.substring(0, slash));
+		}
+		try {
+			client.mkdir(path);
+		} catch (IOException e) {
+			throw error(path, e);
+		}
+	}
+
+	public void removeFile(String path) throws SshSessionlException {
+		try {
+			client.remove(path);
+		} catch (IOException e) {
+			throw error(path, e);
+		}
+	}
+
+	/**
+	 * Removes the directory. With 'recursive', its content is removed first, links are removed but not followed.
+	 *
+	 * @param path
+	 * @param recursive
+	 * @throws SshSessionlException
+	 */
+	public void removeDir(String path, boolean recursive) throws SshSessionlException {
+		try {
+			if (recursive) {
+				String dir = path.endsWith("/") ? path : path + "/";
+				for (DirEntry entry : client.readDir(path)) {
+					String name = entry.getFilename();
+					if (".".equals(name) || "..".equals(name)) {
+						continue;
+					}
+					if (entry.getAttributes().isDirectory()) {
+						removeDir(dir + name, true);
+					} else {
+						client.remove(dir + name);
+					}
+				}
+			}
+			client.rmdir(path);
+		} catch (IOException e) {
+			throw error(path, e);
+		}
+	}
+
+	/**
+	 * Reads the whole file as UTF-8 text.
+	 *
+	 * @param path
+	 * @return
+	 * @throws SshSessionlException
+	 */
+	public String readFile(String path) throws SshSessionlException {
+		try (OutputCapture capture = new OutputCapture()) {
+			readFile(path, capture);
+			return capture.toString(SshHelper.UTF8);
+		} catch (IOException e) {
+			throw error(path, e);
+		}
+	}
+
+	/**
+	 * Writes the content of the file to the given stream, with pipelined read requests.
+	 *
+	 * @param path
+	 * @param out  - not closed
+	 * @throws SshSessionlException
+	 */
+	public void readFile(String path, OutputStream out) throws SshSessionlException {
+		try (CloseableHandle handle = client.open(path, SftpClient.OpenMode.Read)) {
+			read(handle, 0, Long.MAX_VALUE, out);
+		} catch (IOException e) {
+			throw error(path, e);
+		}
+	}
+
+	/**
+	 * Downloads the file. The local file is created with the size of the remote file and written through a memory
+	 * mapping.
+	 *
+	 * @param path
+	 * @param localFile - replaced if it exists
+	 * @throws SshSessionlException
+	 */
+	public void download(String path, File localFile) throws SshSessionlException {
+		try (CloseableHandle handle = client.open(path, SftpClient.OpenMode.Read);
+				RandomAccessFile file = new RandomAccessFile(localFile, "rw")) {
+			long size = client.stat(handle).getSize();
+			FileChannel channel = file.getChannel();
+			channel.truncate(0);
+			long total = read(handle, 0, Long.MAX_VALUE, LocalFileAccess.mappedSink(channel, size));
+			if (total < size) {
+				// the remote file shrank while it was read
+				channel.truncate(total);
+			}
+		} catch (IOException e) {
+			throw error(path, e);
+		}
+	}
+
+	/**
+	 * Uploads the file, reading it through a memory mapping.
+	 *
+	 * @param localFile
+	 * @param path      - replaced if it exists
+	 * @throws SshSessionlException
+	 */
+	public void upload(File localFile, String path) throws SshSessionlException {
+		try (RandomAccessFile file = new RandomAccessFile(localFile, "r");
+				CloseableHandle handle = client.open(path, SftpClient.OpenMode.Write, SftpClient.OpenMode.Create, SftpClient.OpenMode.Truncate)) {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			write(handle, 0, size, LocalFileAccess.mappedSource(channel, size));
+		} catch (IOException e) {
+			throw error(path, e);
+		}
+	}
+
+	/**
+	 * Reads a range of the file, for random access. Fewer bytes are returned when the end of the file is reached.
+	 *
+	 * @param path
+	 * @param offset - position in the file
+	 * @param length - maximum number of bytes
+	 * @param out    - receives the bytes, not closed
+	 * @return number of bytes read
+	 * @throws SshSessionlException
+	 */
+	public long read(String path, long offset, long length, OutputStream out) throws SshSessionlException {
+		try (CloseableHandle handle = client.open(path, SftpClient.OpenMode.Read)) {
+			return read(handle, offset, length, out);
+		} catch (IOException e) {
+			throw error(path, e);
+		}
+	}
+
+	/**
+	 * Keeps up to 'maxPendingRequests' requests outstanding and writes the replies in order. A short reply which is not at
+	 * the end of the file discards the requests sent after it and continues from where it ended.
+	 */
+	long read(CloseableHandle handle, long offset, long length, OutputStream out) throws IOException {
+		return read(handle, offset, length, (buf, off, len, position) -> out.write(buf, off, len));
+	}
+
+	/**
+	 * Passes the data of each reply straight from the packet buffer to the sink, at its position in the file.
+	 */
+	long read(CloseableHandle handle, long offset, long length, LocalFileAccess.Sink sink) throws IOException {
+		RawSftpClient raw = (RawSftpClient) client;
+		byte[] id = handle.getIdentifier();
+		Deque<PendingRead> pending = new ArrayDeque<>();
+		long next = offset;
+		long end = length == Long.MAX_VALUE ? Long.MAX_VALUE : offset + length;
+		long total = 0;
+		boolean eof = false;
+		try {
+			while (!eof) {
+				while (pending.size() < maxPendingRequests && next < end) {
+					int len = (int) Math.min(chunkSize, end - next);
+					Buffer request = new ByteArrayBuffer(id.length + Long.SIZE, false);
+					request.putBytes(id);
+					request.putLong(next);
+					request.putInt(len);
+					pending.add(new PendingRead(raw.send(SftpConstants.SSH_FXP_READ, request), next, len));
+					next += len;
+				}
+				PendingRead read = pending.poll();
+				if (read == null) {
+					break;
+				}
+				int received = receiveData(raw.receive(read.id), sink, read.offset);
+				if (received == -1) {
+					eof = true;
+				} else {
+					total += received;
+					if (received < read.length) {
+						// replies of the following requests do not continue this one
+						discard(raw, pending);
+						next = read.offset + received;
+					}
+				}
+			}
+		} finally {
+			// unclaimed replies would be kept by the client forever, also when the sink failed
+			discard(raw, pending);
+		}
+		return total;
+	}
+
+	private static void discard(RawSftpClient raw, Deque<PendingRead> pending) throws IOException {
+		PendingRead discarded;
+		while ((discarded = pending.poll()) != null) {
+			raw.receive(discarded.id);
+		}
+	}
+
+	/**
+	 * Writes the range of the local file to the remote file at the same offset, keeping up to 'maxPendingRequests' write
+	 * requests outstanding. The file is read directly into the packet buffer of each request.
+	 */
+	long write(CloseableHandle handle, long offset, long length, LocalFileAccess.Source source) throws IOException {
+		RawSftpClient raw = (RawSftpClient) client;
+		byte[] id = handle.getIdentifier();
+		Deque<Integer> pending = new ArrayDeque<>();
+		long next = offset;
+		long end = offset + length;
+		try {
+			while (next < end || !pending.isEmpty()) {
+				while (pending.size() < maxPendingRequests && next < end) {
+					int len = (int) Math.min(chunkSize, end - next);
+					// large enough for the handle, offset and data, so that the data can be read into its array
+					Buffer request = new ByteArrayBuffer(id.length + len + Long.SIZE, false);
+					request.putBytes(id);
+					request.putLong(next);
+					request.putInt(len);
+					source.read(request.array(), request.wpos(), len, next);
+					request.wpos(request.wpos() + len);
+					pending.add(raw.send(SftpConstants.SSH_FXP_WRITE, request));
+					next += len;
+				}
+				checkStatus(raw.receive(pending.poll()));
+			}
+		} finally {
+			// unclaimed replies would be kept by the client forever
+			for (Integer discarded : pending) {
+				raw.receive(discarded);
+			}
+		}
+		return length;
+	}
+
+	private static void checkStatus(Buffer reply) throws IOException {
+		reply.getInt(); // length
+		int type = reply.getUByte();
+		reply.getInt(); // request id
+		if (type != SftpConstants.SSH_FXP_STATUS) {
+			throw new IOException("Unexpected SFTP reply to write request: " + SftpConstants.getCommandMessageName(type));
+		}
+		int status = reply.getInt();
+		if (status != SftpConstants.SSH_FX_OK) {
+			throw new SftpException(status, reply.getString());
+		}
+	}
+
+	SftpClient getClient() {
+		return client;
+	}
+
+	/**
+	 * Parses the reply to a read request and passes its data to the sink.
+	 *
+	 * @return number of bytes received, -1 at the end of the file
+	 */
+	private static int receiveData(Buffer reply, LocalFileAccess.Sink sink, long position) throws IOException {
+		reply.getInt(); // length
+		int type = reply.getUByte();
+		reply.getInt(); // request id
+		if (type == SftpConstants.SSH_FXP_DATA) {
+			int len = reply.getInt();
+			if (len > reply.available()) {
+				throw new IOException("Truncated SFTP data reply: " + len + " bytes announced, " + reply.available() + " received");
+			}
+			sink.write(reply.array(), reply.rpos(), len, position);
+			return len;
+		}
+		if (type == SftpConstants.SSH_FXP_STATUS) {
+			int status = reply.getInt();
+			if (status == SftpConstants.SSH_FX_EOF) {
+				return -1;
+			}
+			String message = reply.getString();
+			throw new SftpException(status, message);
+		}
+		throw new IOException("Unexpected SFTP reply to read request: " + SftpConstants.getCommandMessageName(type));
+	}
+
+	@Override
+	public void close() {
+		try {
+			client.close();
+		} catch (IOException e) {
+			LOG.debug("Error closing SFTP client: " + e.getMessage());
+		}
+	}
+
+	private static RemoteFile toRemoteFile(String path, Attributes attrs) {
+		long modified = attrs.getModifyTime() != null ? attrs.getModifyTime().toMillis() : RemoteFile.UNKNOWN_TIME;
+		return new RemoteFile(path, attrs.getSize(), modified, attrs.isDirectory());
+	}
+
+	private static boolean isNoSuchFile(IOException e) {
+		return e instanceof SftpException && ((SftpException) e).getStatus() == SftpConstants.SSH_FX_NO_SUCH_FILE;
+	}
+
+	private static SshSessionlException error(String path, IOException e) {
+		return new SshSessionlException("SFTP error: " + path + ": " + e.getMessage(), e);
+	}
+
+	private static final class PendingRead {
+		private final int id;
+		private final long offset;
+		private final int length;
+
+		private PendingRead(int id, long offset, int length) {
+			this.id = id;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
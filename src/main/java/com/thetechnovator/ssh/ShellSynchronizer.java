@@ -0,0 +1,100 @@
+package com.thetechnovator.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Brings the shell to a known state by typing a probe command which prints a unique sentinel, and discarding all
+ * output up to and including the sentinel. Used instead of sleeping for a fixed time, after the shell is opened and
+ * after commands which do not print the end marker ('su', 'exit', sudo check).
+ *
+ * The sentinel is built from control characters which are printed by 'printf' but not contained in the echoed probe,
+ * so the echo never matches.
+ *
+ * @author JogaSingh
+ *
+ */
+class ShellSynchronizer {
+	static final long READY_TIMEOUT = 60 * 1000; // 1 minute
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	private ShellSynchronizer() {
+	}
+
+	/**
+	 * Waits until the shell has executed the probe. On timeout the shell channel is closed by the scheduler thread,
+	 * which must not wait for the lock of the session held by 'connect', and the session by the calling thread.
+	 *
+	 * @param session
+	 * @throws SshSessionlException if the shell did not respond in time or the session was closed.
+	 */
+	static void sync(SshSession session) throws SshSessionlException {
+		String token = Long.toString(SEQUENCE.incrementAndGet());
+		String probe = "printf '\\x1D\\x06%s\\x1F' " + token;
+		byte[] sentinel = sentinel(token);
+		SshCommand probeCmd = SshCommand.Builder.getInstance(probe).maxExecutionTimeMs(READY_TIMEOUT).maxInactivityTimeMs(READY_TIMEOUT).build();
+		AtomicReference<String> error = new AtomicReference<>();
+		CommandWatchdog watchdog = CommandWatchdog.start(probeCmd, message -> {
+			error.set("Shell did not become ready: " + message);
+			session.abortShell();
+		});
+		try {
+			OutputStream out = session.getShell().getInvertedIn();
+			InputStream in = session.getShell().getInvertedOut();
+			out.write((probe + "\n").getBytes());
+			out.flush();
+			byte[] buf = new byte[READ_BUFFER_SIZE];
+			int matched = 0;
+			while (true) {
+				int len = in.read(buf, 0, buf.length);
+				if (len == -1) {
+					throw closed(session, error.get(), null);
+				}
+				for (int i = 0; i < len; i++) {
+					byte c = buf[i];
+					if (c == sentinel[matched]) {
+						matched++;
+					} else {
+						// sentinel starts with a character which is not repeated in it
+						matched = c == sentinel[0] ? 1 : 0;
+					}
+					if (matched == sentinel.length) {
+						// the sentinel is the last thing the probe prints. The prompt which follows is skipped by
+						// the next command
+						return;
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw closed(session, error.get(), e);
+		} finally {
+			watchdog.stop();
+		}
+	}
+
+	private static SshSessionlException closed(SshSession session, String timeoutError, IOException e) {
+		if (timeoutError != null) {
+			session.close();
+			return new SshSessionlException(timeoutError, e);
+		}
+		if (e != null) {
+			return new SshSessionlException(e.getMessage(), e);
+		}
+		return new SshSessionlException("Shell closed while waiting for it to become ready");
+	}
+
+	private static byte[] sentinel(String token) {
+		byte[] sentinel = new byte[token.length() + 3];
+		sentinel[0] = Constants.END_OF_TEXT_GROUP;
+		sentinel[1] = Constants.ACKNOWLEDGE;
+		for (int i = 0; i < token.length(); i++) {
+			sentinel[i + 2] = (byte) token.charAt(i);
+		}
+		sentinel[sentinel.length - 1] = Constants.END_OF_TEXT_UNIT;
+		return sentinel;
+	}
+}
@@ -0,0 +1,119 @@
+package com.thetechnovator.ssh;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.AttributeRepository;
+import org.apache.sshd.common.AttributeRepository.AttributeKey;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.compression.BuiltinCompressions;
+import org.apache.sshd.common.compression.Compression;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides the Apache SSHD client to the sessions. A client owns the NIO reactor with its I/O worker threads, so sharing
+ * one provider between sessions keeps the number of threads bound to the number of workers instead of the number of
+ * sessions.
+ *
+ * The client is reference counted. It is started when the first session acquires it and stopped when the last session
+ * releases it.
+ *
+ * Compression is negotiated per session: sessions connected with the {@link #COMPRESSION} attribute offer zlib, the
+ * others only 'none', so that one client can serve both.
+ *
+ * @author JogaSingh
+ *
+ */
+public class SshClientProvider {
+	private static final Logger LOG = LoggerFactory.getLogger(SshClientProvider.class);
+	private static final SshClientProvider SHARED = new SshClientProvider();
+	/**
+	 * Connection attribute which makes the session offer compression.
+	 */
+	static final AttributeKey<Boolean> COMPRESSION = new AttributeKey<>();
+	// 'zlib@openssh.com' only starts after authentication, which OpenSSH servers prefer
+	private static final List<NamedFactory<Compression>> COMPRESSION_FACTORIES = Arrays.asList(BuiltinCompressions.delayedZlib, BuiltinCompressions.zlib,
+			BuiltinCompressions.none);
+	private int nioWorkers;
+	private SshClient client;
+	private int refCount = 0;
+
+	/**
+	 * Provider with the SSHD default number of I/O workers (available processors + 1)
+	 */
+	public SshClientProvider() {
+		this(0);
+	}
+
+	/**
+	 * @param nioWorkers - number of I/O worker threads of the client. 0 or less uses the SSHD default.
+	 */
+	public SshClientProvider(int nioWorkers) {
+		this.nioWorkers = nioWorkers;
+	}
+
+	/**
+	 * Provider shared by all sessions of the JVM which are built with it.
+	 *
+	 * @return
+	 */
+	public static SshClientProvider shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Returns the started client, starting it if needed. Every call must be paired with a {@link #release()}.
+	 *
+	 * @return
+	 */
+	public synchronized SshClient acquire() {
+		if (client == null) {
+			client = SshClient.setUpDefaultClient();
+			if (nioWorkers > 0) {
+				client.setNioWorkers(nioWorkers);
+			}
+			client.addSessionListener(new SessionListener() {
+				@Override
+				public void sessionCreated(Session session) {
+					// called before the key exchange proposal is sent
+					AttributeRepository context = session instanceof ClientSession ? ((ClientSession) session).getConnectionContext() : null;
+					if (context != null && Boolean.TRUE.equals(context.getAttribute(COMPRESSION))) {
+						session.setCompressionFactories(COMPRESSION_FACTORIES);
+					}
+				}
+			});
+			client.start();
+			LOG.debug("SSH client started with " + client.getNioWorkers() + " I/O workers");
+		}
+		refCount++;
+		return client;
+	}
+
+	/**
+	 * Releases the client acquired with {@link #acquire()}. The client is stopped when no session uses it anymore.
+	 */
+	public synchronized void release() {
+		if (refCount == 0) {
+			return;
+		}
+		refCount--;
+		if (refCount == 0) {
+			client.close(true);
+			client = null;
+			LOG.debug("SSH client stopped");
+		}
+	}
+
+	public int getNioWorkers() {
+		return nioWorkers;
+	}
+
+	public synchronized int getRefCount() {
+		return refCount;
+	}
+}
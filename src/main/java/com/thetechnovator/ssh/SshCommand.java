@@ -18,7 +18,9 @@ public class SshCommand {
 	private long maxExecutionTimeMs=DEFAULT_MAX_EXECUTION_TIME;
 	private long maxInactivityTimeMs=DEFAULT_INACTIVIT_TIMEOUT;
 	private OutputStream outputStream;
+	private OutputStream errorStream;
 	private boolean writeOutputToConsole=true;
+	private boolean compressOutput=false;
 	/**
 	 * Constructor with only 'commandLine' parameter. It sets 'writeOutputToConsole' to 'true'.
 	 * 
@@ -125,6 +127,29 @@ public class SshCommand {
 		this.outputStream = outputStream;
 	}
 	
+	/**
+	 * Error Stream set using the {@link #setErrorStream(OutputStream)}
+	 * 
+	 * @return
+	 *
+	 * @see #setErrorStream(OutputStream)
+	 */
+	public OutputStream getErrorStream() {
+		return errorStream;
+	}
+	
+	/**
+	 * Receives the standard error of the command separately from its standard output.
+	 * 
+	 * Only honoured in the {@link ExecutionMode#EXEC_CHANNEL} mode, the interactive shell has a single output. When not
+	 * set, standard error is written to the output stream as well.
+	 * 
+	 * @param errorStream
+	 */
+	public void setErrorStream(OutputStream errorStream) {
+		this.errorStream = errorStream;
+	}
+	
 	/**
 	 * Whether to write the command output to standard output. Default is 'true'.
 	 *  
@@ -145,6 +170,29 @@ public class SshCommand {
 	public void setWriteOutputToConsole(boolean writeOutputToConsole) {
 		this.writeOutputToConsole = writeOutputToConsole;
 	}
+	
+	/**
+	 * Whether the output is compressed on the remote host. Default is 'false'.
+	 * 
+	 * @return
+	 * 
+	 * @see #setCompressOutput(boolean)
+	 */
+	public boolean isCompressOutput() {
+		return compressOutput;
+	}
+	
+	/**
+	 * Sets whether the standard output is piped through 'gzip' on the remote host and decompressed while it is read.
+	 * Text output typically shrinks several times, which pays off on slow links for outputs of more than a few KB.
+	 * 
+	 * Only honoured for streamed output, see {@link SshSession#lines(SshCommand)}. The remote host needs 'gzip'.
+	 * 
+	 * @param compressOutput
+	 */
+	public void setCompressOutput(boolean compressOutput) {
+		this.compressOutput = compressOutput;
+	}
 
 	public static class Builder {
 		private SshCommand cmd;
@@ -227,6 +275,28 @@ public class SshCommand {
 			cmd.setOutputStream(out);
 			return this;
 		}
+		
+		/**
+		 * @param err
+		 * @return
+		 * 
+		 * @see SshCommand#setErrorStream(OutputStream)
+		 */
+		public OutputOptions writeErrorToOutputStream(OutputStream err) {
+			cmd.setErrorStream(err);
+			return this;
+		}
+		
+		/**
+		 * @param compress
+		 * @return
+		 * 
+		 * @see SshCommand#setCompressOutput(boolean)
+		 */
+		public OutputOptions compress(boolean compress) {
+			cmd.setCompressOutput(compress);
+			return this;
+		}
 		public Builder builder() {
 			return builder;
 		}
@@ -1,17 +1,18 @@
 package com.thetechnovator.ssh;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.Consumer;
 
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.LineIterator;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,9 +21,13 @@ public class SshHelper {
 	public static final Charset UTF8 = Charset.forName("UTF-8");
 	public static final String FILE_TIME = "yyyy-MM-dd HH:mm:ss.SSSSSSSSS";
 	public static final String TIMESTAMP = "yyyyMMddHHmmssSSS";
-	private static final SimpleDateFormat timestampFormat = new SimpleDateFormat(TIMESTAMP);
-	private static final SimpleDateFormat fileTimeFormat = new SimpleDateFormat(FILE_TIME);
+	//DateTimeFormatter is thread safe, unlike SimpleDateFormat
+	private static final DateTimeFormatter timestampFormat = DateTimeFormatter.ofPattern(TIMESTAMP);
 	private static final String FILE_NOT_FOUND_MSG = "No such file or directory";
+	//paths with these characters need the shell to expand or unquote them
+	private static final String SHELL_CHARS = "*?[]{}~$`'\"\\ ;&|<>";
+	//below this size compression does not pay for the gzip header and the CPU time
+	public static final long COMPRESSION_MIN_SIZE = 64 * 1024;
 	private static final Logger LOG = LoggerFactory.getLogger(SshHelper.class);
 	private String hostname;
 	private String username;
@@ -34,6 +39,14 @@ public class SshHelper {
 	private String suPassword;
 	private boolean switchUserRequiresSudo;
 	private boolean doSudo;
+	private ExecutionMode executionMode = ExecutionMode.SHELL;
+	private boolean ownsSession = true;
+	private boolean useSftp = true;
+	private boolean sftpUnavailable = false;
+	private SftpFileOperations sftp;
+	private boolean compressOutput = false;
+	private IncrementalFileReader incrementalReader;
+	private ResultCache resultCache;
 	public SshHelper(String hostname, String username, String password, String key, boolean connectUserRequiresSudo, String suUsername, String suPassword, boolean switchUserRequiresSudo) {
 		super();
 		this.hostname = hostname;
@@ -46,11 +59,29 @@ public class SshHelper {
 		this.switchUserRequiresSudo = switchUserRequiresSudo;
 	}
 
+	/**
+	 * Works on an already connected session, e.g. one leased from a {@link SshSessionPool}. The session stays owned by the
+	 * caller, {@link #disconnect()} does not close it.
+	 * 
+	 * @param sshSession - connected session
+	 * @param connectUserRequiresSudo - whether commands are to be prefixed with 'sudo'
+	 */
+	public SshHelper(SshSession sshSession, boolean connectUserRequiresSudo) {
+		super();
+		this.sshSession = sshSession;
+		this.hostname = sshSession.getHost();
+		this.username = sshSession.getUsername();
+		this.executionMode = sshSession.getExecutionMode();
+		this.connectUserRequiresSudo = connectUserRequiresSudo;
+		this.doSudo = connectUserRequiresSudo;
+		this.ownsSession = false;
+	}
+
 	public void connect() throws SshSessionlException {
 		if (sshSession != null) {
 			return;
 		}
-		SshSession.Builder builder = SshSession.Builder.getInstance().host(hostname).username(username);
+		SshSession.Builder builder = SshSession.Builder.getInstance().host(hostname).username(username).executionMode(executionMode);
 		LOG.info("Opening session");
 		if (StringUtils.isEmpty(key)) {
 			builder.password(password);
@@ -74,8 +105,119 @@ public class SshHelper {
 	
 	}
 	
+	/**
+	 * Sets how the commands are executed. Must be called before {@link #connect()}. Switching user needs the
+	 * {@link ExecutionMode#SHELL} mode.
+	 * 
+	 * @param executionMode
+	 */
+	public void setExecutionMode(ExecutionMode executionMode) {
+		this.executionMode = executionMode;
+	}
+
+	/**
+	 * Whether file operations use the SFTP subsystem instead of shell commands. Default is 'true'.
+	 * 
+	 * Shell commands are still used when commands need 'sudo' or the user was switched, when the path contains wild
+	 * cards or other characters interpreted by the shell, and when the server does not provide SFTP.
+	 * 
+	 * @param useSftp
+	 */
+	public void setUseSftp(boolean useSftp) {
+		this.useSftp = useSftp;
+	}
+
+	/**
+	 * Whether file contents read with 'readFile' and 'download' are compressed with 'gzip' on the remote host. Default is
+	 * 'false'.
+	 * 
+	 * Only files of at least {@value #COMPRESSION_MIN_SIZE} bytes are compressed, and only when their size can be checked
+	 * over SFTP. The output of 'grep' and 'tail' is not compressed, its size is not known in advance. Compressed output is
+	 * always read over an exec channel. For compression of all traffic see {@link SshSession.Builder#compression(boolean)}.
+	 * 
+	 * @param compressOutput
+	 */
+	public void setCompressOutput(boolean compressOutput) {
+		this.compressOutput = compressOutput;
+	}
+
+	/**
+	 * Cache for the results of 'listFiles', 'fileExists', 'findFiles' and 'tail'. Default is none. The same cache can be
+	 * set on the helpers of many hosts. See {@link ResultCache}.
+	 * 
+	 * @param resultCache - 'null' to disable caching
+	 */
+	public void setResultCache(ResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	private <T> T cached(ResultCache.Operation operation, String args, String remotePath, ResultCache.Loader<T> loader) throws SshSessionlException {
+		if (resultCache == null) {
+			return loader.load();
+		}
+		return resultCache.get(cacheHost(), cacheUser(), operation, args, remotePath, loader);
+	}
+
+	private void invalidate(String remotePath) {
+		if (resultCache != null) {
+			//the other users of the host see the change as well
+			resultCache.invalidate(cacheHost(), remotePath);
+		}
+	}
+
+	private String cacheHost() {
+		return sshSession.getHost()+":"+sshSession.getPort();
+	}
+
+	private String cacheUser() {
+		//the same command may see other files as another user or with sudo
+		String user = StringUtils.isNotEmpty(suUsername) ? suUsername : username;
+		return user+(doSudo ? " sudo" : "");
+	}
+
+	private static List<RemoteFile> copyFiles(List<RemoteFile> files) {
+		//cached lists are shared, every caller gets its own copy
+		List<RemoteFile> copy = new ArrayList<>(files.size());
+		for (RemoteFile file : files) {
+			copy.add(new RemoteFile(file.getAbsolutePath(), file.getSize(), file.getModifiedTimeMillis(), file.isDirectory()));
+		}
+		return copy;
+	}
+
+	private boolean isCompressed(String remoteFilePath) throws SshSessionlException {
+		if (!compressOutput) {
+			return false;
+		}
+		//without a known size, compressing may cost more than it saves
+		SftpFileOperations sftp = getSftp(remoteFilePath);
+		if (sftp == null) {
+			return false;
+		}
+		RemoteFile file = sftp.stat(remoteFilePath);
+		return file != null && file.getSize() >= COMPRESSION_MIN_SIZE;
+	}
+
+	private SftpFileOperations getSftp(String remoteFilePath) {
+		if (!useSftp || sftpUnavailable || doSudo || StringUtils.isNotEmpty(suUsername) || StringUtils.containsAny(remoteFilePath, SHELL_CHARS)) {
+			return null;
+		}
+		if (sftp == null) {
+			try {
+				sftp = new SftpFileOperations(sshSession);
+			} catch (SshSessionlException e) {
+				LOG.info("SFTP is not available, using shell commands: "+e.getMessage());
+				sftpUnavailable = true;
+			}
+		}
+		return sftp;
+	}
+
 	public void disconnect() {
-		if (sshSession != null) {
+		if (sftp != null) {
+			sftp.close();
+			sftp = null;
+		}
+		if (sshSession != null && ownsSession) {
 			LOG.info("Closing session");
 			sshSession.close();
 		}
@@ -102,14 +244,32 @@ public class SshHelper {
 	}
 
 	public ExecResult execute(String command, boolean returnOutput, long maxExecutionTimeout,long inactivityTimeout) throws SshSessionlException {
-		OutputStream os = null;
-		String cmdLine=command.trim();
-		if (doSudo) {
-			if (!cmdLine.startsWith("sudo")) {
-				cmdLine = "sudo "+cmdLine;
-			}
+		if (!returnOutput) {
+			return execute(command, null, maxExecutionTimeout, inactivityTimeout);
+		}
+		//output is kept in memory, only very large output is written to a temp file
+		try (OutputCapture capture = new OutputCapture()) {
+			ExecResult result = execute(command, capture, maxExecutionTimeout, inactivityTimeout);
+			result.setOutput(capture.toString(UTF8));
+			return result;
+		} catch (IOException e) {
+			throw new SshSessionlException(e.getMessage(), e);
 		}
-		SshCommand sshCmd = new SshCommand(cmdLine);
+	}
+
+	/**
+	 * Executes the command and writes its output to the given capture instead of the console. The capture stays owned
+	 * by the caller, who reads the output from it as bytes, String or lines, and closes it.
+	 * 
+	 * @param command
+	 * @param capture - receives the output. When 'null', the output is written to the console.
+	 * @param maxExecutionTimeout - -1 for the default
+	 * @param inactivityTimeout - -1 for the default
+	 * @return result without output
+	 * @throws SshSessionlException
+	 */
+	public ExecResult execute(String command, OutputCapture capture, long maxExecutionTimeout,long inactivityTimeout) throws SshSessionlException {
+		SshCommand sshCmd = new SshCommand(toCommandLine(command));
 		
 		if (maxExecutionTimeout != -1) {
 			sshCmd.setMaxExecutionTimeMs(maxExecutionTimeout);
@@ -117,44 +277,107 @@ public class SshHelper {
 		if (inactivityTimeout != -1) {
 			sshCmd.setMaxInactivityTimeMs(inactivityTimeout);
 		}
-		
-		File outFile = null;
-		try {
-			if (returnOutput) {
-				if (outFile == null) {
-					outFile = File.createTempFile("remote", ".out");
-				}
-				os = new FileOutputStream(outFile);
-				sshCmd.setOutputStream(os);
-				sshCmd.setWriteOutputToConsole(false);
-			}
-			int exitCode=sshSession.exec(sshCmd);
-			connect();
-			String output=null;
-			if (returnOutput) {
-				output = FileUtils.readFileToString(outFile, UTF8);
-			}
-			ExecResult result= new ExecResult(exitCode,output);
-			//LOG.info("Exit Status="+sshResult.getExitStatus()+", Exit Status 2="+result.getExitStatus());
-			return result;
-		} catch (IOException e) {
-			throw new SshSessionlException(e.getMessage(), e);
-		}finally {
-			Utils.closeQuietly(os);
-			if (returnOutput) {
-				//A temp file was created. Delete it
-				outFile.delete();
+		if (capture != null) {
+			sshCmd.setOutputStream(capture);
+			sshCmd.setWriteOutputToConsole(false);
+		}
+		int exitCode=sshSession.exec(sshCmd);
+		connect();
+		return new ExecResult(exitCode,null);
+	}
+
+	/**
+	 * Executes the commands with a single round trip, see {@link SshSession#execBatch(List)}. All commands are executed,
+	 * also when some of them fail.
+	 * 
+	 * @param commands
+	 * @param returnOutput - whether the output of the commands is to be returned instead of being written to the console
+	 * @return result of each command in the order of the commands
+	 * @throws SshSessionlException
+	 */
+	public List<ExecResult> executeBatch(List<String> commands, boolean returnOutput) throws SshSessionlException {
+		List<SshCommand> sshCmds = new ArrayList<>();
+		for (String command : commands) {
+			sshCmds.add(new SshCommand(toCommandLine(command), null, !returnOutput));
+		}
+		List<ExecResult> results = new ArrayList<>();
+		for (CommandResult result : sshSession.execBatch(sshCmds)) {
+			results.add(new ExecResult(result.getExitStatus(), returnOutput ? result.getOutput() : null));
+		}
+		return results;
+	}
+
+	private String toCommandLine(String command) {
+		String cmdLine=command.trim();
+		if (doSudo) {
+			if (!cmdLine.startsWith("sudo")) {
+				cmdLine = "sudo "+cmdLine;
 			}
 		}
+		return cmdLine;
 	}
 
 	public void upload(File fromLocalFile, String toRemoteFilePath) throws SshSessionlException{
-		sshSession.upload(fromLocalFile, toRemoteFilePath);
+		try {
+			SftpFileOperations sftp = getSftp(toRemoteFilePath);
+			if (sftp != null) {
+				//like scp, a file uploaded to a directory is put into it
+				RemoteFile target = sftp.stat(toRemoteFilePath);
+				String path = toRemoteFilePath;
+				if (target != null && target.isDirectory()) {
+					path = StringUtils.removeEnd(path, "/")+"/"+fromLocalFile.getName();
+				}
+				sftp.upload(fromLocalFile, path);
+				return;
+			}
+			sshSession.upload(fromLocalFile, toRemoteFilePath);
+		} finally {
+			invalidate(toRemoteFilePath);
+		}
 	}
 	public void download(String fromRemoteFilePath, File toLocalFile) throws SshSessionlException{
+		if (toLocalFile.isDirectory()) {
+			//like scp, a file downloaded to a directory is put into it
+			toLocalFile = new File(toLocalFile, StringUtils.substringAfterLast("/"+fromRemoteFilePath, "/"));
+		}
+		if (isCompressed(fromRemoteFilePath)) {
+			sshSession.downloadCompressed(toLocalFile, fromRemoteFilePath);
+			return;
+		}
+		SftpFileOperations sftp = getSftp(fromRemoteFilePath);
+		if (sftp != null) {
+			sftp.download(fromRemoteFilePath, toLocalFile);
+			return;
+		}
 		sshSession.download(toLocalFile, fromRemoteFilePath);
 	}
+	/**
+	 * Uploads the files of the local directory which are missing or different in the remote directory. See
+	 * {@link DirectorySync}. Files are written as the connected user.
+	 * 
+	 * @param localDir
+	 * @param remoteDir
+	 * @param checksum - compare files of the same size by checksum instead of modification time
+	 * @param deleteExtra - delete remote files which do not exist locally
+	 * @return what was transferred, deleted and saved
+	 * @throws SshSessionlException
+	 */
+	public SyncReport sync(File localDir, String remoteDir, boolean checksum, boolean deleteExtra) throws SshSessionlException{
+		DirectorySync sync = DirectorySync.Builder.getInstance().session(sshSession).checksum(checksum).deleteExtra(deleteExtra).build();
+		try {
+			return sync.sync(localDir, remoteDir);
+		} finally {
+			invalidate(remoteDir);
+		}
+	}
 	public String readFile(String remoteFilePath) throws SshSessionlException{
+		if (isCompressed(remoteFilePath)) {
+			return readCompressed("cat "+remoteFilePath, 0);
+		}
+		SftpFileOperations sftp = getSftp(remoteFilePath);
+		if (sftp != null) {
+			return sftp.readFile(remoteFilePath);
+		}
 		String command = "cat "+remoteFilePath;
 		ExecResult result = execute(command, true);
 		if (result.isFailed()) {
@@ -172,6 +395,191 @@ public class SshHelper {
 			return result.getOutput();
 		}
 	}
+	/**
+	 * Passes the lines of the file to the consumer while they arrive. Memory use does not depend on the size of the
+	 * file. Streamed commands run in their own exec channel as the connected user. With a switched user they run in
+	 * its shell instead, and the output is captured, in memory or in a temporary file, before it is passed on.
+	 * 
+	 * @param remoteFilePath
+	 * @param consumer
+	 * @throws SshSessionlException
+	 */
+	public void readFile(String remoteFilePath, Consumer<String> consumer) throws SshSessionlException{
+		if (StringUtils.isNotEmpty(suUsername)) {
+			shellLines("cat "+remoteFilePath, consumer, 0);
+			return;
+		}
+		streamLines("cat "+remoteFilePath, consumer, 0, isCompressed(remoteFilePath));
+	}
+	/**
+	 * Passes the matching lines to the consumer while they arrive. With a switched user, see
+	 * {@link #readFile(String, Consumer)}.
+	 * 
+	 * @return number of matching lines
+	 */
+	public long grep(String searchToken, String remoteFilePath, Consumer<String> consumer) throws SshSessionlException{
+		//exit status 1 only means that nothing matched
+		if (StringUtils.isNotEmpty(suUsername)) {
+			return shellLines("grep "+searchToken+" "+remoteFilePath, consumer, 1);
+		}
+		return streamLines("grep "+searchToken+" "+remoteFilePath, consumer, 1, false);
+	}
+	/**
+	 * Searches all files found below the path, several of them at the same time, and passes the matches with their file
+	 * and line number to the consumer. See {@link ParallelGrep}.
+	 * 
+	 * @param searchToken - basic regular expression, passed literally
+	 * @param remotePath - directory to search in
+	 * @param nameExpr - name pattern of the files, as for {@link #findFiles(String, String, String)}
+	 * @param order - order of the matches
+	 * @param consumer - called with every match, one call at a time
+	 * @return number of matches
+	 * @throws SshSessionlException
+	 */
+	public long grepAll(String searchToken, String remotePath, String nameExpr, GrepOrder order, Consumer<GrepMatch> consumer) throws SshSessionlException{
+		List<RemoteFile> files = findFiles(remotePath, nameExpr, "-type f");
+		ParallelGrep grep = ParallelGrep.Builder.getInstance().session(sshSession).order(order).build();
+		return grep.grep(searchToken, files, consumer);
+	}
+	/**
+	 * Counts the lines selected by the query on the remote host. See {@link RemoteQuery}.
+	 * 
+	 * @param query
+	 * @return number of selected lines
+	 * @throws SshSessionlException if a file cannot be read
+	 */
+	public long countLines(RemoteQuery query) throws SshSessionlException{
+		List<String> lines = runQuery(query.countCommand());
+		return lines.isEmpty() ? 0 : Long.parseLong(lines.get(0).trim());
+	}
+	/**
+	 * Counts the values of a field in the lines selected by the query on the remote host, and returns the most frequent
+	 * ones. See {@link RemoteQuery}.
+	 * 
+	 * @param query
+	 * @param field - number of the field, starting with 1
+	 * @param limit - maximum number of values, 0 for all
+	 * @return values with their counts, the most frequent first
+	 * @throws SshSessionlException if a file cannot be read
+	 */
+	public List<RemoteQuery.Count> countBy(RemoteQuery query, int field, int limit) throws SshSessionlException{
+		List<RemoteQuery.Count> counts = new ArrayList<>();
+		for (String line : runQuery(query.countByCommand(field, limit))) {
+			counts.add(RemoteQuery.parseCount(line));
+		}
+		return counts;
+	}
+	/**
+	 * Returns the first lines selected by the query on the remote host. See {@link RemoteQuery}.
+	 * 
+	 * @param query
+	 * @param limit - maximum number of lines, 0 for all
+	 * @return selected lines
+	 * @throws SshSessionlException if a file cannot be read
+	 */
+	public List<String> selectLines(RemoteQuery query, int limit) throws SshSessionlException{
+		return runQuery(query.selectCommand(limit));
+	}
+	private List<String> runQuery(String command) throws SshSessionlException{
+		List<String> result = new ArrayList<>();
+		try (OutputLines lines = sshSession.lines(new SshCommand(toCommandLine(command), null, false))) {
+			String line;
+			while ((line = lines.readLine()) != null) {
+				result.add(line);
+			}
+			int status = lines.getExitStatus();
+			String error = lines.getErrorOutput().trim();
+			//only the last command of the pipeline sets the exit status, the others report their errors on standard error
+			if (status < 0 || status > 1 || !error.isEmpty()) {
+				throw new SshSessionlException("Error running query: "+error);
+			}
+		}
+		return result;
+	}
+	private long streamLines(String command, Consumer<String> consumer, int maxSuccessStatus, boolean compress) throws SshSessionlException{
+		long count = 0;
+		SshCommand cmd = new SshCommand(toCommandLine(command), null, false);
+		cmd.setCompressOutput(compress);
+		try (OutputLines lines = sshSession.lines(cmd)) {
+			String line;
+			while ((line = lines.readLine()) != null) {
+				consumer.accept(line);
+				count++;
+			}
+			int status = lines.getExitStatus();
+			if (status < 0 || status > maxSuccessStatus) {
+				throw new SshSessionlException("Error reading file: "+lines.getErrorOutput().trim());
+			}
+		}
+		return count;
+	}
+	/**
+	 * Runs the command in the shell, which is the only one of the switched user, and passes the captured output to the
+	 * consumer line by line.
+	 */
+	private long shellLines(String command, Consumer<String> consumer, int maxSuccessStatus) throws SshSessionlException{
+		long count = 0;
+		try (OutputCapture capture = new OutputCapture()) {
+			ExecResult result = execute(command, capture, -1, -1);
+			if (result.getExitStatus() < 0 || result.getExitStatus() > maxSuccessStatus) {
+				result.setOutput(capture.toString(UTF8));
+				throw new SshSessionlException("Error reading file: "+result.getOutputLastLine());
+			}
+			try (LineIterator it = capture.lineIterator(UTF8)) {
+				while (it.hasNext()) {
+					consumer.accept(it.next());
+					count++;
+				}
+			}
+		} catch (IOException e) {
+			throw new SshSessionlException(e.getMessage(), e);
+		}
+		return count;
+	}
+	private String readCompressed(String command, int maxSuccessStatus) throws SshSessionlException{
+		SshCommand cmd = new SshCommand(toCommandLine(command), null, false);
+		cmd.setCompressOutput(true);
+		try (OutputLines lines = sshSession.lines(cmd); OutputCapture capture = new OutputCapture()) {
+			lines.copyTo(capture);
+			int status = lines.getExitStatus();
+			if (status < 0 || status > maxSuccessStatus) {
+				throw new SshSessionlException("Error reading file: "+lines.getErrorOutput().trim());
+			}
+			return capture.toString(UTF8);
+		} catch (IOException e) {
+			throw new SshSessionlException(e);
+		}
+	}
+	/**
+	 * Follows the file like 'tail -F' and passes every appended line to the consumer, until the returned follower is
+	 * closed. See {@link LogFollower}.
+	 * 
+	 * @param remoteFilePath
+	 * @param from - position of the last line processed, 'null' to start at the current end of the file
+	 * @param consumer - called on the thread of the follower
+	 * @return the running follower, to be closed
+	 * @throws SshSessionlException
+	 */
+	public LogFollower follow(String remoteFilePath, LogFollower.Position from, Consumer<LogFollower.Line> consumer) throws SshSessionlException{
+		LogFollower follower = LogFollower.Builder.getInstance().session(sshSession).path(remoteFilePath).from(from).build();
+		follower.start(consumer);
+		return follower;
+	}
+	/**
+	 * Copies the bytes appended to the file since the previous call for the same path, the whole file on the first call
+	 * or after it was truncated or rotated. See {@link IncrementalFileReader}.
+	 * 
+	 * @param remoteFilePath
+	 * @param out - not closed
+	 * @return number of bytes copied
+	 * @throws SshSessionlException
+	 */
+	public synchronized long readAppended(String remoteFilePath, OutputStream out) throws SshSessionlException{
+		if (incrementalReader == null) {
+			incrementalReader = IncrementalFileReader.Builder.getInstance().session(sshSession).compress(compressOutput).build();
+		}
+		return incrementalReader.read(remoteFilePath, out);
+	}
 	public String grepLast(String searchToken, String remoteFilePath) throws SshSessionlException{
 		String command = "tac "+remoteFilePath+" | grep -m 1 "+searchToken;
 		ExecResult result = execute(command, true);
@@ -182,6 +590,9 @@ public class SshHelper {
 		}
 	}
 	public String tail(String remoteFilePath, int lineCount) throws SshSessionlException{
+		return cached(ResultCache.Operation.TAIL, lineCount+" "+remoteFilePath, remoteFilePath, () -> doTail(remoteFilePath, lineCount));
+	}
+	private String doTail(String remoteFilePath, int lineCount) throws SshSessionlException{
 		String command = "tail -n "+lineCount+" "+remoteFilePath;
 		ExecResult result = execute(command, true);
 		if (result.isFailed()) {
@@ -191,6 +602,18 @@ public class SshHelper {
 		}
 	}
 	public void createDir(String remoteFilePath) throws SshSessionlException{
+		try {
+			doCreateDir(remoteFilePath);
+		} finally {
+			invalidate(remoteFilePath);
+		}
+	}
+	private void doCreateDir(String remoteFilePath) throws SshSessionlException{
+		SftpFileOperations sftp = getSftp(remoteFilePath);
+		if (sftp != null) {
+			sftp.createDir(remoteFilePath);
+			return;
+		}
 		String command = "mkdir -p "+remoteFilePath;		
 		ExecResult result = execute(command);
 		if (result.isFailed()) {
@@ -198,14 +621,14 @@ public class SshHelper {
 		}
 	}
 	public String createTempDir() throws SshSessionlException{
-		String dir = "/tmp/remote_session_"+timestampFormat.format(new Date());
-		String command = "mkdir -p "+dir;		
-		ExecResult result = execute(command);
+		String dir = "/tmp/remote_session_"+timestampFormat.format(LocalDateTime.now());
+		//both commands in one round trip
+		List<ExecResult> results = executeBatch(Arrays.asList("mkdir -p "+dir, "chmod 777 "+dir), true);
+		ExecResult result = results.get(0);
 		if (result.isFailed()) {
 			throw new SshSessionlException("Error creating directory: "+result.getOutputLastLine());
 		}
-		command = "chmod 777 "+dir;		
-		result = execute(command);
+		result = results.get(1);
 		if (result.isFailed()) {
 			throw new SshSessionlException("Error setting directory permissions: "+result.getOutputLastLine());
 		}
@@ -213,59 +636,114 @@ public class SshHelper {
 		return dir;
 	}
 	public List<RemoteFile> findFiles(String remotePath, String nameExpr, String options) throws SshSessionlException{
-		//First check if files are returned at all
-		String findCmd="find "+remotePath+" -name "+nameExpr+" "+options;
-		String command = findCmd+" | xargs -r ls -l --time-style=full-iso";
-		ExecResult result = execute(command, true);
-		if (result.isFailed()) {
-			throw new SshSessionlException("Error reading file: "+result.getOutputLastLine());
+		String args = remotePath+" "+nameExpr+" "+options;
+		return copyFiles(cached(ResultCache.Operation.FIND_FILES, args, remotePath, () -> doFindFiles(remotePath, nameExpr, options)));
+	}
+	private List<RemoteFile> doFindFiles(String remotePath, String nameExpr, String options) throws SshSessionlException{
+		if (StringUtils.isEmpty(suUsername)) {
+			List<RemoteFile> list = new ArrayList<>();
+			findFiles(remotePath, nameExpr, options, list::add);
+			return list;
 		}
-		return parseFiles(result.getOutput());
-		
+		//the switched user only exists in the shell, where error messages would be mixed into the records
+		String command = "find "+remotePath+" -name "+nameExpr+" "+options+FileListParser.FIND_PRINTF+" 2>/dev/null";
+		return runListing(command, true);
 	}
-	public List<RemoteFile> listFiles(String remotePathExpr) throws SshSessionlException{
-		String command = "ls -l --time-style=full-iso "+remotePathExpr;
-		ExecResult result = execute(command, true);
-		if (result.isFailed()) {
-			throw new SshSessionlException("Error reading file: "+result.getOutputLastLine());
+	/**
+	 * Same as {@link #findFiles(String, String, String)}, but the files are passed to the consumer while the output of
+	 * 'find' arrives, instead of being collected in a list. Directories which cannot be read are skipped.
+	 */
+	public void findFiles(String remotePath, String nameExpr, String options, Consumer<RemoteFile> consumer) throws SshSessionlException{
+		//NUL separated records keep paths with spaces and other special characters intact
+		String command = "find "+remotePath+" -name "+nameExpr+" "+options+FileListParser.FIND_PRINTF;
+		try (OutputLines lines = sshSession.lines(toCommandLine(command))) {
+			FileListParser.parseFind(lines.getInputStream(), consumer);
+			int status = lines.getExitStatus();
+			String errors = lines.getErrorOutput().trim();
+			//status 1 is also returned when only some directories could not be read
+			if (status != 0 && (status != 1 || !isPermissionDenied(errors))) {
+				throw new SshSessionlException("Error reading file: "+errors);
+			}
+			if (!errors.isEmpty()) {
+				LOG.debug("Skipped unreadable directories: "+errors);
+			}
+		} catch (IOException e) {
+			throw new SshSessionlException("Error reading file list: "+e.getMessage(), e);
 		}
-		return parseFiles(result.getOutput());
-		
 	}
-	private List<RemoteFile> parseFiles(String str) throws SshSessionlException{
-		/*
-		 * Parse output in the below format
--rw-r--r-- 1 twix16 twix16 10151867 2019-03-14 12:32:51.000000000 +0100 /app/twix16/tibco/ae/tra/domain/DBE_AE_001/application/logs/asl-ndm-abrp-asl-ndm-abrp_1.log
--rw-r--r-- 1 twix16 twix16 30715133 2018-11-13 11:41:22.000000000 +0100 /app/twix16/tibco/ae/tra/domain/DBE_AE_001/application/logs/asl-ndm-abrp-asl-ndm-abrp_1.log.1
-		 */
-		List<RemoteFile> list = new ArrayList<>();
-		if (StringUtils.isEmpty(str)) {
-			return list;
+	/**
+	 * Builds an index of the files below the remote directory and brings it up to date, see {@link RemoteFileIndex}.
+	 * The index is queried locally, instead of running 'find' again for every search.
+	 * 
+	 * @param remoteRoot - absolute path of the directory
+	 * @param indexFile - local file to keep the index in between runs, 'null' to hold it in memory only
+	 * @return the refreshed index, to be refreshed again before later queries
+	 * @throws SshSessionlException
+	 */
+	public RemoteFileIndex indexFiles(String remoteRoot, File indexFile) throws SshSessionlException{
+		RemoteFileIndex index = RemoteFileIndex.Builder.getInstance().session(sshSession).root(remoteRoot).indexFile(indexFile).build();
+		index.refresh();
+		return index;
+	}
+	public List<RemoteFile> listFiles(String remotePathExpr) throws SshSessionlException{
+		return copyFiles(cached(ResultCache.Operation.LIST_FILES, remotePathExpr, remotePathExpr, () -> doListFiles(remotePathExpr)));
+	}
+	private List<RemoteFile> doListFiles(String remotePathExpr) throws SshSessionlException{
+		SftpFileOperations sftp = getSftp(remotePathExpr);
+		if (sftp != null) {
+			return sftp.listFiles(remotePathExpr);
 		}
-		String[] lines = StringUtils.split(str,(char)10);
-		for (String line: lines) {
-			LOG.debug("Parsing line: "+line);
-			if (line.startsWith("total")) {
-				continue;
+		//names are printed as they are, also when the shell runs in a terminal
+		String command = "ls -l --time-style=full-iso --quoting-style=literal --color=never "+remotePathExpr;
+		return runListing(command, false);
+	}
+	private static boolean isPermissionDenied(String errors) {
+		for (String line : StringUtils.split(errors, '\n')) {
+			if (!line.trim().endsWith("Permission denied")) {
+				return false;
 			}
-			String[] tokens = StringUtils.split(line," ");
-			if (tokens.length < 9) {
-				throw new SshSessionlException("Cannot parse remote list file output: "+line+". Tokens: "+StringUtils.join(tokens,","));
+		}
+		return !errors.isEmpty();
+	}
+	/**
+	 * Executes a listing of 'find' with {@link FileListParser#FIND_PRINTF} or of 'ls', and parses it from the captured
+	 * output without converting it to a String. The errors of 'find' are not known, so its status 1 is accepted.
+	 */
+	private List<RemoteFile> runListing(String command, boolean find) throws SshSessionlException{
+		try (OutputCapture capture = new OutputCapture()) {
+			ExecResult result = execute(command, capture, -1, -1);
+			if (result.isFailed() && !(find && result.getExitStatus() == 1)) {
+				//error messages follow the last complete record
+				String output = capture.toString(UTF8);
+				result.setOutput(output.substring(output.lastIndexOf('\0') + 1).trim());
+				throw new SshSessionlException("Error reading file: "+result.getOutputLastLine());
 			}
-			try {
-				boolean isDir = tokens[0].charAt(0)=='d';
-				RemoteFile file = new RemoteFile(tokens[8], Long.parseLong(tokens[4]), fileTimeFormat.parse(tokens[5]+" "+tokens[6]),isDir);
-				list.add(file);
-			} catch (NumberFormatException e) {
-				throw new SshSessionlException(e);
-			} catch (ParseException e) {
-				throw new SshSessionlException(e);
+			List<RemoteFile> list = new ArrayList<>();
+			try (InputStream in = capture.getInputStream()) {
+				if (find) {
+					FileListParser.parseFind(in, list::add);
+				} else {
+					FileListParser.parseLs(in, list::add);
+				}
 			}
+			return list;
+		} catch (IOException e) {
+			throw new SshSessionlException("Error reading file list: "+e.getMessage(), e);
 		}
-		
-		return list;
 	}
 	public void removeFile(String remoteFilePath) throws SshSessionlException{
+		try {
+			doRemoveFile(remoteFilePath);
+		} finally {
+			invalidate(remoteFilePath);
+		}
+	}
+	private void doRemoveFile(String remoteFilePath) throws SshSessionlException{
+		SftpFileOperations sftp = getSftp(remoteFilePath);
+		if (sftp != null) {
+			sftp.removeFile(remoteFilePath);
+			return;
+		}
 		String command;
 		command = "rm "+remoteFilePath;
 		ExecResult result = execute(command);
@@ -274,6 +752,21 @@ public class SshHelper {
 		}
 	}
 	public void removeDir(String remoteFilePath, boolean recursive) throws SshSessionlException{
+		try {
+			doRemoveDir(remoteFilePath, recursive);
+		} finally {
+			invalidate(remoteFilePath);
+		}
+	}
+	private void doRemoveDir(String remoteFilePath, boolean recursive) throws SshSessionlException{
+		SftpFileOperations sftp = getSftp(remoteFilePath);
+		if (sftp != null) {
+			//like 'rm -rf', a missing directory is not an error
+			if (!recursive || sftp.exists(remoteFilePath)) {
+				sftp.removeDir(remoteFilePath, recursive);
+			}
+			return;
+		}
 		String command;
 		if (recursive) {
 			command = "rm -rf "+remoteFilePath;
@@ -286,6 +779,13 @@ public class SshHelper {
 		}
 	}
 	public boolean fileExists(String remoteFilePath) throws SshSessionlException{
+		return cached(ResultCache.Operation.FILE_EXISTS, remoteFilePath, remoteFilePath, () -> doFileExists(remoteFilePath));
+	}
+	private boolean doFileExists(String remoteFilePath) throws SshSessionlException{
+		SftpFileOperations sftp = getSftp(remoteFilePath);
+		if (sftp != null) {
+			return sftp.exists(remoteFilePath);
+		}
 		String command = "ls "+remoteFilePath;
 		ExecResult result = execute(command, false);
 		if (result.isFailed()) {
@@ -32,6 +32,20 @@ public class SshInput2OutputPipe extends SshInputReader {
 		}
 	}
 
+	@Override
+	protected void write(byte[] buf, int off, int len) throws SshSessionlException {
+		try {
+			if (write2StdOut) {
+				System.out.write(buf, off, len);
+			}
+			if (out != null) {
+				out.write(buf, off, len);
+			}
+		} catch (IOException e) {
+			throw new SshSessionlException(e);
+		}
+	}
+
 	@Override
 	public void writeCommand(String str) throws SshSessionlException {
 		try {
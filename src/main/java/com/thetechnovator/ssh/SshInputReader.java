@@ -5,17 +5,26 @@ import static com.thetechnovator.ssh.Constants.LF;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.apache.commons.lang3.math.NumberUtils;
 
 public abstract class SshInputReader {
 
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final int MAX_EXIT_CODE_LENGTH = 11;
+
 	private SshSession session;
 	private int status = -1;
 	private SshCommand cmd;
-	private String error = null;
+	// set by the timeout handler on the scheduler thread
+	private volatile String error = null;
+	private int readLen;
+	private boolean start;
+	private boolean groupReceived;
+	private boolean awaitingStart;
+	private boolean markerReceived;
+	private StringBuilder exitCode;
+	private boolean chunkDiscarded;
 
 	public SshInputReader(SshCommand cmd, SshSession session) {
 		this.session = session;
@@ -23,85 +32,132 @@ public abstract class SshInputReader {
 	}
 
 	public int readCommandOutput(String cmd) throws SshSessionlException {
-		InactivityCheck inactivityCheck = new InactivityCheck(this);
-		MaxExecutionTimeCheck executionTimeCheck = new MaxExecutionTimeCheck(this);
-		Timer timer = new Timer();
-		timer.schedule(executionTimeCheck, this.cmd.getMaxExecutionTimeMs());
-		timer.schedule(inactivityCheck, 5, 5);
+		// on timeout the shell channel is closed, which ends the blocking read below
+		CommandWatchdog watchdog = CommandWatchdog.start(this.cmd, message -> {
+			setError(message);
+			session.abortShell();
+		});
 
-		int readLen = 0;
 		InputStream in = session.getShell().getInvertedOut();
-		boolean groupReceived = false;
-		boolean start = true;
+		byte[] buf = new byte[READ_BUFFER_SIZE];
+		readLen = 0;
+		groupReceived = false;
+		// commands sent with the start marker skip everything up to it, others skip the echo by its length
+		awaitingStart = cmd.startsWith(Constants.CMD_PREFIX);
+		markerReceived = false;
+		start = true;
+		exitCode = null;
 		status = -1;
 		try {
-			StringBuilder sb = new StringBuilder();
 			while (status == -1) {
-				if (in.available() == 0) {
-					try {
-						Thread.sleep(10);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
-				int c = in.read();
-				if (c == -1) {
-					break;
-				}
-				inactivityCheck.setLastActivityTime(System.currentTimeMillis());
-				// sb.append((char)c);
-				readLen++;
-				if (readLen < cmd.length()) {
-					// ignore command output
-					continue;
-				} else if (readLen == cmd.length()) {
-					if (cmd.endsWith(Constants.CMD_SUFFIX)) {
-						writeCommand(cmd.substring(0, cmd.length() - Constants.CMD_SUFFIX.length()) + System.lineSeparator());
-					} else {
-						writeCommand(cmd + System.lineSeparator());
-					}
-					continue;
-				}
-				// carriage return line feed in the beginning
-				if (start && (c == 13 || c == 10)) {
-					continue;
-				}
-				if (c == Constants.END_OF_TEXT_GROUP) {
-					groupReceived = true;
-					continue;
-				}
-				if (groupReceived && c == Constants.END_OF_TEXT_RECORD) {
-					// now we are sure that it is the output from our command which we append to the
-					// real command
-					// read the exist code
-					status = readExitCode(in);
-					writeCommand(System.lineSeparator());
+				// blocks until the channel delivers data, returns whatever has arrived so far
+				int len = in.read(buf, 0, buf.length);
+				if (len == -1) {
 					break;
 				}
-				// System.out.print(sb.toString());
-				start = false;
-				groupReceived = false;
-				write((char) c);
+				watchdog.touch();
+				scan(buf, len, cmd);
 			}
-			if (!groupReceived) {
-				// if it is some command which does not return the marker. Wait for the output
-				sleep(1000);
+			if (status == -1 && error != null) {
+				// stream ended because the shell was closed on timeout
+				session.close();
+				throw new SshSessionlException(error);
+			}
+			if (!markerReceived) {
+				// some command which does not print the end marker. Skip whatever it still writes
+				ShellSynchronizer.sync(session);
 			}
-			flushBuffer(in);
 			return status;
 		} catch (IOException e) {
 			throw handleException(e);
 		} catch (SshSessionlException e) {
 			throw e;
 		} finally {
-			flushBufferQuiet(in);
-			timer.cancel();
+			watchdog.stop();
 		}
 	}
 
+	/**
+	 * Scans one chunk of shell output. Echoed command is skipped, the output is passed on in runs to
+	 * {@link #write(byte[], int, int)} and the end marker record is parsed for the exit code. Marker may
+	 * span across chunks.
+	 */
+	private void scan(byte[] buf, int len, String cmd) throws SshSessionlException {
+		int runStart = -1;
+		chunkDiscarded = false;
+		for (int i = 0; i < len && status == -1 && !chunkDiscarded; i++) {
+			int c = buf[i] & 0xFF;
+			if (exitCode != null) {
+				readExitCode(c);
+				continue;
+			}
+			if (awaitingStart) {
+				// the echo contains the marker as escaped text only, so the first real marker is printed by the command
+				if (groupReceived && c == Constants.START_OF_TEXT) {
+					awaitingStart = false;
+					groupReceived = false;
+					// echo is already skipped
+					readLen = cmd.length();
+					String commandLine = cmd.substring(Constants.CMD_PREFIX.length());
+					if (commandLine.endsWith(Constants.CMD_SUFFIX)) {
+						commandLine = commandLine.substring(0, commandLine.length() - Constants.CMD_SUFFIX.length());
+					}
+					writeCommand(commandLine + System.lineSeparator());
+				} else {
+					groupReceived = c == Constants.END_OF_TEXT_GROUP;
+				}
+				continue;
+			}
+			readLen++;
+			if (readLen < cmd.length()) {
+				// ignore command output
+				continue;
+			} else if (readLen == cmd.length()) {
+				if (cmd.endsWith(Constants.CMD_SUFFIX)) {
+					writeCommand(cmd.substring(0, cmd.length() - Constants.CMD_SUFFIX.length()) + System.lineSeparator());
+				} else {
+					writeCommand(cmd + System.lineSeparator());
+				}
+				continue;
+			}
+			// carriage return line feed in the beginning
+			if (start && (c == CR || c == LF)) {
+				continue;
+			}
+			if (c == Constants.END_OF_TEXT_GROUP) {
+				runStart = flushRun(buf, runStart, i);
+				groupReceived = true;
+				continue;
+			}
+			if (groupReceived && c == Constants.END_OF_TEXT_RECORD) {
+				// now we are sure that it is the output from our command which we append to the
+				// real command. Read the exit code
+				runStart = flushRun(buf, runStart, i);
+				exitCode = new StringBuilder();
+				continue;
+			}
+			start = false;
+			groupReceived = false;
+			if (runStart == -1) {
+				runStart = i;
+			}
+		}
+		if (status == -1 && !chunkDiscarded) {
+			flushRun(buf, runStart, len);
+		}
+	}
+
+	private int flushRun(byte[] buf, int runStart, int end) throws SshSessionlException {
+		if (runStart != -1 && end > runStart) {
+			write(buf, runStart, end - runStart);
+		}
+		return -1;
+	}
+
 	private SshSessionlException handleException(IOException e) throws SshSessionlException {
 		if (this.error != null) {
 			// it could be a timeout error or something where session is closed
+			session.close();
 			throw new SshSessionlException(error);
 		} else {
 			throw new SshSessionlException(e);
@@ -137,34 +193,26 @@ public abstract class SshInputReader {
 		}
 	}
 
-	private int readExitCode(InputStream input) throws SshSessionlException {
-		StringBuilder sb = new StringBuilder();
-		try {
-			while (true) {
-				if (input.available() == 0) {
-					sleep(10);
-				}
-				if (input.available() == 0) {
-					throw new SshSessionlException("Response marker record not fully received");
-				}
-				int c = input.read();
-				if (c == Constants.END_OF_TEXT_UNIT) {
-					// received the complete marker record.
-					String buf = sb.toString();
-					if (buf.length() == 0) {
-						throw new SshSessionlException("Invalid Response marker record. It does not contain exit code");
-					}
-					// verify if it is a valid number
-					if (!NumberUtils.isCreatable(buf)) {
-						throw new SshSessionlException("Invalid Response marker record. Not a valid exit code: " + buf);
-					}
-					return NumberUtils.createInteger(buf);
-				}
-				sb.append((char) c);
+	private void readExitCode(int c) throws SshSessionlException {
+		if (c == Constants.END_OF_TEXT_UNIT) {
+			// received the complete marker record.
+			String buf = exitCode.toString();
+			if (buf.length() == 0) {
+				throw new SshSessionlException("Invalid Response marker record. It does not contain exit code");
 			}
-		} catch (IOException e) {
-			throw handleException(e);
+			// verify if it is a valid number
+			if (!NumberUtils.isCreatable(buf)) {
+				throw new SshSessionlException("Invalid Response marker record. Not a valid exit code: " + buf);
+			}
+			status = NumberUtils.createInteger(buf);
+			markerReceived = true;
+			writeCommand(System.lineSeparator());
+			return;
 		}
+		if (exitCode.length() >= MAX_EXIT_CODE_LENGTH) {
+			throw new SshSessionlException("Invalid Response marker record. Not a valid exit code: " + exitCode);
+		}
+		exitCode.append((char) c);
 	}
 
 	protected static boolean isNewLine(int c) {
@@ -237,16 +285,19 @@ public abstract class SshInputReader {
 	}
 
 	public static void flushBuffer(InputStream in) throws IOException {
-		// System.out.println("Flush buffer");
+		byte[] buf = new byte[READ_BUFFER_SIZE];
 		while (true) {
-			if (in.available() == 0) {
+			int available = in.available();
+			if (available == 0) {
 				sleep(10);
-				if (in.available() == 0) {
+				available = in.available();
+				if (available == 0) {
 					break;
 				}
 			}
-			int c = in.read();
-			// System.out.print((char)c);
+			if (in.read(buf, 0, Math.min(available, buf.length)) == -1) {
+				break;
+			}
 		}
 	}
 
@@ -287,55 +338,30 @@ public abstract class SshInputReader {
 
 	protected abstract void write(int c) throws SshSessionlException;
 
-	protected void write(String str) throws SshSessionlException {
-		for (int i = 0; i < str.length(); i++) {
-			write(str.charAt(i));
+	/**
+	 * Writes a run of command output. Default implementation passes it byte by byte to {@link #write(int)} and stops
+	 * as soon as the status is decided. Implementations which do not inspect the output should override it.
+	 */
+	protected void write(byte[] buf, int off, int len) throws SshSessionlException {
+		for (int i = off; i < off + len && status == -1 && !chunkDiscarded; i++) {
+			write(buf[i] & 0xFF);
 		}
 	}
 
-	protected abstract void writeCommand(String str) throws SshSessionlException;
-
-	private static final class InactivityCheck extends TimerTask {
-		private SshInputReader reader;
-		private long lastActivityTime = System.currentTimeMillis();
-
-		public InactivityCheck(SshInputReader reader) {
-			super();
-			this.reader = reader;
-		}
-
-		@Override
-		public void run() {
-			long timeout = lastActivityTime + reader.cmd.getMaxInactivityTimeMs();
-			if (System.currentTimeMillis() > timeout) {
-				String msg = "Inactivity Timeout: Command '" + reader.cmd.getCommandLine() + "' did not write anything to console in the last "
-						+ Utils.msToNamedTimeInterval(reader.cmd.getMaxInactivityTimeMs());
-				reader.setError(msg);
-				sleep(10);
-				reader.session.close();
-			}
-		}
-
-		public void setLastActivityTime(long lastActivityTime) {
-			this.lastActivityTime = lastActivityTime;
-		}
-
+	/**
+	 * Discards the rest of the chunk being scanned as well as anything still pending in the channel. Used when a
+	 * prompt has been answered and the output received so far is of no more interest.
+	 */
+	protected void discardPendingOutput() {
+		chunkDiscarded = true;
+		flushBufferQuiet(session.getShell().getInvertedOut());
 	}
 
-	private static final class MaxExecutionTimeCheck extends TimerTask {
-		private SshInputReader reader;
-
-		public MaxExecutionTimeCheck(SshInputReader reader) {
-			super();
-			this.reader = reader;
-		}
-
-		@Override
-		public void run() {
-			String msg = "Max Exection Timeout: Command '" + reader.cmd.getCommandLine() + "' did not complete in " + Utils.msToNamedTimeInterval(reader.cmd.getMaxInactivityTimeMs());
-			reader.setError(msg);
-			sleep(10);
-			reader.session.close();
+	protected void write(String str) throws SshSessionlException {
+		for (int i = 0; i < str.length(); i++) {
+			write(str.charAt(i));
 		}
 	}
+
+	protected abstract void writeCommand(String str) throws SshSessionlException;
 }
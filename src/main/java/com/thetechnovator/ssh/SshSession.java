@@ -3,7 +3,12 @@ package com.thetechnovator.ssh;
 import static com.thetechnovator.ssh.Constants.SUCCESS;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
@@ -12,6 +17,10 @@ import org.apache.sshd.client.channel.ChannelShell;
 import org.apache.sshd.client.scp.ScpClient;
 import org.apache.sshd.client.scp.ScpClientCreator;
 import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.AttributeRepository;
+import org.apache.sshd.common.SshConstants;
+import org.apache.sshd.common.kex.KexProposalOption;
+import org.apache.sshd.common.util.buffer.Buffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,6 +33,8 @@ import org.slf4j.LoggerFactory;
 public class SshSession {
 
 	private static final Logger LOG = LoggerFactory.getLogger(SshSession.class);
+	public static final int DEFAULT_MAX_CHANNELS = 10; // default 'MaxSessions' of OpenSSH
+	private static final String KEEP_ALIVE_REQUEST = "keepalive@openssh.com";
 	private String host;
 	private int port = 22;
 	private String username;
@@ -31,12 +42,19 @@ public class SshSession {
 	private String sshKey = null;
 	private PasswordProvider sudoPasswordProvider = null;
 	private PasswordProvider suPasswordProvider = null;
+	private ExecutionMode executionMode = ExecutionMode.SHELL;
+	private int maxChannels = DEFAULT_MAX_CHANNELS;
+	private boolean compression = false;
 
 	private boolean sudoVerified = false;
-	private SshClient client;
-	private ChannelShell channel;
+	private boolean execSudoVerified = false;
+	private String sudoPassword = null;
+	private SshClientProvider clientProvider;
+	private volatile ChannelShell channel;
 	private ClientSession session;
-	private boolean isOpen = false;
+	private volatile boolean isOpen = false;
+	private volatile ChannelDispatcher channelDispatcher;
+	private final Object shellLock = new Object();
 
 	private SshSession() {
 
@@ -52,11 +70,30 @@ public class SshSession {
 			LOG.info("Session is already open. Doing nothing");
 			return;
 		}
-		client = SshClient.setUpDefaultClient();
-		client.start();
+		if (clientProvider == null) {
+			// a client of its own, stopped when the session is closed
+			clientProvider = new SshClientProvider();
+		}
+		SshClient client = clientProvider.acquire();
+		try {
+			doConnect(client);
+			channelDispatcher = new ChannelDispatcher(maxChannels);
+			// only now, so that a failed connect is not closed a second time
+			isOpen = true;
+		} catch (SshSessionlException | RuntimeException e) {
+			if (session != null) {
+				session.close(true);
+			}
+			clientProvider.release();
+			throw e;
+		}
+	}
+
+	private void doConnect(SshClient client) throws SshSessionlException {
 		try {
 			LOG.info("Connecting to " + host + " using username: " + username);
-			session = client.connect(username, host, port).verify(7L, TimeUnit.SECONDS).getSession();
+			AttributeRepository context = compression ? AttributeRepository.ofKeyValuePair(SshClientProvider.COMPRESSION, Boolean.TRUE) : null;
+			session = client.connect(username, host, port, context, null).verify(7L, TimeUnit.SECONDS).getSession();
 		} catch (IOException e) {
 			throw new SshSessionlException("Connection Error: " + e.getMessage(), e);
 		}
@@ -71,15 +108,22 @@ public class SshSession {
 		} catch (IOException e) {
 			throw new SshSessionlException("Authentication Error: " + e.getMessage(), e);
 		}
+		if (compression) {
+			LOG.info("Compression: " + session.getNegotiatedKexParameter(KexProposalOption.S2CCOMP));
+		}
 
+		if (executionMode == ExecutionMode.EXEC_CHANNEL) {
+			// every command opens its own channel, nothing to prepare
+			LOG.info("Ready to accept commands over exec channels");
+			return;
+		}
 		try {
 			LOG.info("Creating shell channel");
 			channel = session.createShellChannel();
 			channel.open().verify(9L, TimeUnit.SECONDS);
-			sleep(1000);
-			SshInputReader.flushBuffer(channel.getInvertedOut());
+			// skip the banner and the first prompt
+			ShellSynchronizer.sync(this);
 			LOG.info("Ready to accept shell commands");
-			isOpen = true;
 		} catch (IOException e) {
 			throw new SshSessionlException("Channel Error: " + e.getMessage(), e);
 		}
@@ -109,23 +153,205 @@ public class SshSession {
 		String cmd = sshCommand.getCommandLine().trim();
 		LOG.debug("Executing command: " + cmd);
 		CommandAttribs cmdAttribs = getCommandAttribs(cmd);
-		if (cmdAttribs.sudo && !sudoVerified) {
-			doSudoCheck();
-			sudoVerified = true;
+		if (executionMode == ExecutionMode.EXEC_CHANNEL) {
+			return execInChannel(sshCommand, cmd, cmdAttribs);
 		}
-		if (cmdAttribs.su) {
-			doSwitchUser(cmd);
-			return 0;
-		} else if (cmdAttribs.exit) {
-			doExit(cmd);
-			return 0;
-		}
-		CommandExecutor executor = new CommandExecutor(this);
-		int statusCode = executor.exec(sshCommand);
+		// there is only one shell, commands from different threads must take turns
+		synchronized (shellLock) {
+			if (cmdAttribs.sudo && !sudoVerified) {
+				doSudoCheck();
+				sudoVerified = true;
+			}
+			if (cmdAttribs.su) {
+				doSwitchUser(cmd);
+				return 0;
+			} else if (cmdAttribs.exit) {
+				doExit(cmd);
+				return 0;
+			}
+			CommandExecutor executor = new CommandExecutor(this);
+			int statusCode = executor.exec(sshCommand);
+			LOG.debug("Status Code: " + statusCode);
+			return statusCode;
+		}
+	}
+
+	/**
+	 * Executes the commands with a single round trip instead of one per command. All commands are sent at once and their
+	 * output is split per command using markers carrying the index and the exit code of each command.
+	 * 
+	 * Commands are executed one after the other in the order given, like typed in one shell. A failing command does not
+	 * stop the following ones. Commands read their standard input from '/dev/null' and must not change the user, so
+	 * 'su' and 'exit' are not supported. In {@link ExecutionMode#EXEC_CHANNEL} mode the whole batch runs in one exec
+	 * channel and the standard error is part of the output.
+	 * 
+	 * @param sshCommands
+	 * @return result of each command in the order of the commands.
+	 * @throws SshSessionlException if a command timed out or the batch could not be completed
+	 */
+	public List<CommandResult> execBatch(List<SshCommand> sshCommands) throws SshSessionlException {
+		if (!isOpen) {
+			throw new SshSessionlException("Session is not connected. Call the 'connect' method first");
+		}
+		if (sshCommands.isEmpty()) {
+			return new ArrayList<>();
+		}
+		boolean anySudo = false;
+		List<CommandAttribs> attribs = new ArrayList<>();
+		for (SshCommand sshCommand : sshCommands) {
+			String cmd = sshCommand.getCommandLine().trim();
+			CommandAttribs cmdAttribs = getCommandAttribs(cmd);
+			if (cmdAttribs.su || cmdAttribs.exit) {
+				throw new SshSessionlException("Command '" + cmd + "' changes the user of the shell. It is not supported in a batch");
+			}
+			anySudo |= cmdAttribs.sudo;
+			attribs.add(cmdAttribs);
+		}
+		LOG.debug("Executing batch of " + sshCommands.size() + " commands");
+		BatchExecutor executor = new BatchExecutor(this);
+		if (executionMode == ExecutionMode.EXEC_CHANNEL) {
+			List<SshCommand> channelCmds = new ArrayList<>();
+			List<String> inputs = new ArrayList<>();
+			for (int i = 0; i < sshCommands.size(); i++) {
+				SshCommand sshCommand = sshCommands.get(i);
+				CommandAttribs cmdAttribs = attribs.get(i);
+				SshCommand channelCmd = prepareChannelCommand(sshCommand, sshCommand.getCommandLine().trim(), cmdAttribs);
+				String input = cmdAttribs.sudo ? sudoPassword : null;
+				if (input != null) {
+					// every sudo of the script reads its password line, a cached timestamp would leave it to the command
+					channelCmd = copyCommand(channelCmd, "sudo -k" + channelCmd.getCommandLine().substring(4));
+				}
+				channelCmds.add(channelCmd);
+				inputs.add(input);
+			}
+			return executor.execInChannel(channelCmds, inputs);
+		}
+		synchronized (shellLock) {
+			if (anySudo && !sudoVerified) {
+				doSudoCheck();
+				sudoVerified = true;
+			}
+			return executor.execInShell(sshCommands);
+		}
+	}
+
+	public List<CommandResult> execBatch(String... commands) throws SshSessionlException {
+		List<SshCommand> sshCommands = new ArrayList<>();
+		for (String command : commands) {
+			sshCommands.add(new SshCommand(command));
+		}
+		return execBatch(sshCommands);
+	}
+
+	/**
+	 * Executes the command in its own exec channel and returns its standard output for reading line by line while it
+	 * arrives, independent of the {@link ExecutionMode} of the session. Only the lines not yet consumed and the channel
+	 * window are held in memory, so it suits outputs of any size.
+	 * 
+	 * The channel does not count against 'maxChannels'. 'su' is not supported.
+	 * 
+	 * @param sshCommand
+	 * @return output lines, which must be closed.
+	 * @throws SshSessionlException
+	 */
+	public OutputLines lines(SshCommand sshCommand) throws SshSessionlException {
+		if (!isOpen) {
+			throw new SshSessionlException("Session is not connected. Call the 'connect' method first");
+		}
+		String cmd = sshCommand.getCommandLine().trim();
+		LOG.debug("Streaming command: " + cmd);
+		CommandAttribs cmdAttribs = getCommandAttribs(cmd);
+		SshCommand channelCmd = prepareChannelCommand(sshCommand, cmd, cmdAttribs);
+		ExecChannelExecutor executor = new ExecChannelExecutor(this);
+		return executor.lines(channelCmd, cmdAttribs.sudo ? sudoPassword : null);
+	}
+
+	public OutputLines lines(String command) throws SshSessionlException {
+		return lines(new SshCommand(command));
+	}
+
+	/**
+	 * Executes the command asynchronously in its own exec channel, independent of the {@link ExecutionMode} of the session.
+	 * 
+	 * Any number of commands can be submitted from any number of threads. At most 'maxChannels' of them run at the same
+	 * time over this session, the rest are queued until a channel is free. Commands do not share shell state, therefore
+	 * 'su' is not supported.
+	 * 
+	 * @param sshCommand
+	 * @return future completing with the exit status of the command, or exceptionally with a {@link SshSessionlException}.
+	 */
+	public CompletableFuture<Integer> execAsync(SshCommand sshCommand) {
+		return execAsync(sshCommand, null);
+	}
+
+	public CompletableFuture<Integer> execAsync(String command) {
+		return execAsync(new SshCommand(command));
+	}
+
+	/**
+	 * Same as {@link #execAsync(SshCommand)}, additionally the output is delivered in chunks to the listener as it
+	 * arrives.
+	 * 
+	 * No thread is blocked while the command runs, the output is pushed by the I/O threads of the SSH client. Only the
+	 * first 'sudo' command of the session verifies sudo in the calling thread.
+	 * 
+	 * @param sshCommand
+	 * @param listener - receives the output, must not block. Can be null.
+	 * @return future completing with the exit status of the command, or exceptionally with a {@link SshSessionlException}.
+	 */
+	public CompletableFuture<Integer> execAsync(SshCommand sshCommand, CommandOutputListener listener) {
+		CompletableFuture<Integer> future = new CompletableFuture<>();
+		ChannelDispatcher dispatcher = channelDispatcher;
+		if (!isOpen || dispatcher == null) {
+			future.completeExceptionally(new SshSessionlException("Session is not connected. Call the 'connect' method first"));
+			return future;
+		}
+		String cmd = sshCommand.getCommandLine().trim();
+		LOG.debug("Submitting command: " + cmd);
+		CommandAttribs cmdAttribs = getCommandAttribs(cmd);
+		try {
+			SshCommand channelCmd = prepareChannelCommand(sshCommand, cmd, cmdAttribs);
+			String input = cmdAttribs.sudo ? sudoPassword : null;
+			ExecChannelExecutor executor = new ExecChannelExecutor(this);
+			return dispatcher.submit(() -> executor.execAsync(channelCmd, input, listener));
+		} catch (SshSessionlException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+	}
+
+	private int execInChannel(SshCommand sshCommand, String cmd, CommandAttribs cmdAttribs) throws SshSessionlException {
+		SshCommand channelCmd = prepareChannelCommand(sshCommand, cmd, cmdAttribs);
+		ExecChannelExecutor executor = new ExecChannelExecutor(this);
+		int statusCode = executor.exec(channelCmd, cmdAttribs.sudo ? sudoPassword : null);
 		LOG.debug("Status Code: " + statusCode);
 		return statusCode;
 	}
 
+	private SshCommand prepareChannelCommand(SshCommand sshCommand, String cmd, CommandAttribs cmdAttribs) throws SshSessionlException {
+		if (cmdAttribs.su) {
+			throw new SshSessionlException("Switch user command '" + cmd + "' needs an interactive shell. It is not supported in exec channels");
+		}
+		if (!cmdAttribs.sudo) {
+			return sshCommand;
+		}
+		verifyExecSudo();
+		if (sudoPassword == null) {
+			return sshCommand;
+		}
+		// sudo reads the password from the standard input, there is no terminal to prompt on
+		return copyCommand(sshCommand, "sudo -S -p '' " + cmd.substring(5));
+	}
+
+	private static SshCommand copyCommand(SshCommand sshCommand, String commandLine) {
+		SshCommand copy = new SshCommand(commandLine, sshCommand.getOutputStream(), sshCommand.isWriteOutputToConsole());
+		copy.setErrorStream(sshCommand.getErrorStream());
+		copy.setMaxExecutionTimeMs(sshCommand.getMaxExecutionTimeMs());
+		copy.setMaxInactivityTimeMs(sshCommand.getMaxInactivityTimeMs());
+		copy.setCompressOutput(sshCommand.isCompressOutput());
+		return copy;
+	}
+
 	public synchronized void close() {
 		if (!isOpen) {
 			LOG.info("Session is not open. Doing nothing");
@@ -133,9 +359,17 @@ public class SshSession {
 		}
 		isOpen = false;
 		sudoVerified = false;
-		channel.close(true);
+		execSudoVerified = false;
+		sudoPassword = null;
+		if (channel != null) {
+			channel.close(true);
+		}
+		if (channelDispatcher != null) {
+			channelDispatcher.close();
+			channelDispatcher = null;
+		}
 		session.close(true);
-		client.close(true);
+		clientProvider.release();
 	}
 
 	public void upload(File localFile, String remotePath) throws SshSessionlException {
@@ -158,14 +392,169 @@ public class SshSession {
 		}
 	}
 
+	/**
+	 * Downloads the file compressed with 'gzip' on the remote host and decompressed while it is written, which suits text
+	 * files such as logs on slow links. The remote host needs 'gzip'.
+	 * 
+	 * @param localFile
+	 * @param remotePath
+	 * @throws SshSessionlException
+	 */
+	public void downloadCompressed(File localFile, String remotePath) throws SshSessionlException {
+		SshCommand cmd = new SshCommand("cat -- " + Utils.shellQuote(remotePath), null, false);
+		cmd.setCompressOutput(true);
+		try (OutputLines output = lines(cmd); OutputStream out = new FileOutputStream(localFile)) {
+			output.copyTo(out);
+			if (output.getExitStatus() != SUCCESS) {
+				throw new SshSessionlException("Error downloading " + remotePath + ": " + output.getErrorOutput().trim());
+			}
+		} catch (IOException e) {
+			throw new SshSessionlException(e);
+		}
+	}
+
+	/**
+	 * Uploads only the blocks of the local file which differ from the remote file. See {@link DeltaTransfer}.
+	 * 
+	 * @param localFile
+	 * @param remotePath
+	 * @param blockSize - size of the compared blocks
+	 * @return transfer ratio and number of blocks sent
+	 * @throws SshSessionlException
+	 */
+	public DeltaReport uploadDelta(File localFile, String remotePath, int blockSize) throws SshSessionlException {
+		return DeltaTransfer.Builder.getInstance().session(this).blockSize(blockSize).build().upload(localFile, remotePath);
+	}
+
+	/**
+	 * Downloads only the blocks of the remote file which differ from the local file. See {@link DeltaTransfer}.
+	 * 
+	 * @param localFile
+	 * @param remotePath
+	 * @param blockSize - size of the compared blocks
+	 * @return transfer ratio and number of blocks received
+	 * @throws SshSessionlException
+	 */
+	public DeltaReport downloadDelta(File localFile, String remotePath, int blockSize) throws SshSessionlException {
+		return DeltaTransfer.Builder.getInstance().session(this).blockSize(blockSize).build().download(remotePath, localFile);
+	}
+
 	public boolean isOpen() {
 		return isOpen;
 	}
 
+	/**
+	 * Checks that the session is open and the server still responds. A 'keepalive@openssh.com' global request is sent
+	 * and its reply awaited, which costs one round trip but no channel.
+	 * 
+	 * @param timeoutMs - maximum time to wait for the reply.
+	 * @return 'true' if the server replied in time.
+	 */
+	public boolean isAlive(long timeoutMs) {
+		if (!isOpen || session == null || !session.isOpen() || (channel != null && !channel.isOpen())) {
+			return false;
+		}
+		try {
+			Buffer buf = session.createBuffer(SshConstants.SSH_MSG_GLOBAL_REQUEST);
+			buf.putString(KEEP_ALIVE_REQUEST);
+			buf.putBoolean(true);
+			// a failure reply is an answer as well, only a missing reply matters
+			session.request(KEEP_ALIVE_REQUEST, buf, timeoutMs, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (IOException | RuntimeException e) {
+			LOG.debug("Liveness check failed: " + e.getMessage());
+			return false;
+		}
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
 	ChannelShell getShell() {
 		return channel;
 	}
 
+	/**
+	 * Closes the shell channel without waiting, which ends a read of its output blocked by a hanging command. Does not
+	 * take the lock of the session, so that timeout handlers can call it. The reading thread closes the session.
+	 */
+	void abortShell() {
+		ChannelShell shell = channel;
+		if (shell != null) {
+			shell.close(true);
+		}
+	}
+
+	ClientSession getClientSession() {
+		return session;
+	}
+
+	/**
+	 * Identifies the credentials without keeping them in clear text, used to tell sessions of different credentials apart.
+	 */
+	String getCredentialIdentity() {
+		if (password != null) {
+			return "password:" + Utils.sha256Hex(password);
+		} else if (sshKey != null) {
+			return "key:" + Utils.sha256Hex(sshKey);
+		}
+		return "none";
+	}
+
+	/**
+	 * Creates a new, not connected session with the same settings.
+	 */
+	SshSession copy() {
+		SshSession copy = new SshSession();
+		copy.host = host;
+		copy.port = port;
+		copy.username = username;
+		copy.password = password;
+		copy.sshKey = sshKey;
+		copy.sudoPasswordProvider = sudoPasswordProvider;
+		copy.suPasswordProvider = suPasswordProvider;
+		copy.executionMode = executionMode;
+		copy.maxChannels = maxChannels;
+		copy.compression = compression;
+		copy.clientProvider = clientProvider;
+		return copy;
+	}
+
+	/**
+	 * New unconnected session with the same settings for another host, using the SSHD client of the given provider.
+	 */
+	SshSession copy(String host, int port, SshClientProvider clientProvider) {
+		SshSession copy = copy();
+		copy.host = host;
+		copy.port = port;
+		copy.clientProvider = clientProvider;
+		return copy;
+	}
+
+	/**
+	 * Provider of the SSHD client given to the builder, 'null' if the session starts a client of its own.
+	 */
+	SshClientProvider getClientProvider() {
+		return clientProvider;
+	}
+
 	private void doSwitchUser(String cmd) throws SshSessionlException {
 		SwitchUserCommandExecutor cmdExecutor = new SwitchUserCommandExecutor(this, suPasswordProvider);
 		SshCommand sshCmd = new SshCommand(cmd);
@@ -185,16 +574,7 @@ public class SshSession {
 	}
 
 	private void doSudoCheck() throws SshSessionlException {
-		PasswordProvider passProvider = sudoPasswordProvider;
-		if (passProvider == null) {
-			// by default the password for the user
-			passProvider = new PasswordProvider() {
-				@Override
-				public String getPassword() {
-					return password;
-				}
-			};
-		}
+		PasswordProvider passProvider = getSudoPasswordProvider();
 		SudoCommandExecutor cmdExecutor = new SudoCommandExecutor(this, passProvider);
 		int status = cmdExecutor.exec();
 		if (status != SUCCESS) {
@@ -203,6 +583,43 @@ public class SshSession {
 		}
 	}
 
+	private synchronized void verifyExecSudo() throws SshSessionlException {
+		if (!execSudoVerified) {
+			doExecSudoCheck();
+			execSudoVerified = true;
+		}
+	}
+
+	private void doExecSudoCheck() throws SshSessionlException {
+		ExecChannelExecutor executor = new ExecChannelExecutor(this);
+		SshCommand check = new SshCommand("sudo -n true", null, false);
+		if (executor.exec(check) == SUCCESS) {
+			LOG.debug("Sudo does not need a password");
+			return;
+		}
+		PasswordProvider passProvider = getSudoPasswordProvider();
+		String sudoPass = passProvider.getPassword();
+		check = new SshCommand("sudo -S -p '' true", null, false);
+		if (sudoPass == null || executor.exec(check, sudoPass) != SUCCESS) {
+			close();
+			throw new SshSessionlException("Sudo command failed: Authentication failure");
+		}
+		sudoPassword = sudoPass;
+	}
+
+	private PasswordProvider getSudoPasswordProvider() {
+		if (sudoPasswordProvider != null) {
+			return sudoPasswordProvider;
+		}
+		// by default the password for the user
+		return new PasswordProvider() {
+			@Override
+			public String getPassword() {
+				return password;
+			}
+		};
+	}
+
 	static void sleep(long ms) {
 		try {
 			Thread.sleep(ms);
@@ -284,6 +701,56 @@ public class SshSession {
 			return this;
 		}
 
+		/**
+		 * Default is {@link ExecutionMode#SHELL}.
+		 * 
+		 * @param executionMode
+		 * @return
+		 */
+		public Builder executionMode(ExecutionMode executionMode) {
+			session.executionMode = executionMode;
+			return this;
+		}
+
+		/**
+		 * Provider of the SSHD client, e.g. {@link SshClientProvider#shared()}. By default every session starts a client
+		 * of its own with its own I/O threads.
+		 * 
+		 * @param clientProvider
+		 * @return
+		 */
+		public Builder clientProvider(SshClientProvider clientProvider) {
+			session.clientProvider = clientProvider;
+			return this;
+		}
+
+		/**
+		 * Maximum number of exec channels used at the same time by {@link SshSession#execAsync(SshCommand)}. Default is
+		 * {@value SshSession#DEFAULT_MAX_CHANNELS}, it should not exceed the 'MaxSessions' setting of the server.
+		 * 
+		 * @param maxChannels
+		 * @return
+		 */
+		public Builder maxChannels(int maxChannels) {
+			if (maxChannels < 1) {
+				throw new IllegalArgumentException("maxChannels must be at least 1");
+			}
+			session.maxChannels = maxChannels;
+			return this;
+		}
+
+		/**
+		 * Offers zlib compression of the SSH transport, for links where bandwidth matters more than CPU. The server
+		 * decides whether it is used. Default is 'false'.
+		 * 
+		 * @param compression
+		 * @return
+		 */
+		public Builder compression(boolean compression) {
+			session.compression = compression;
+			return this;
+		}
+
 		public SshSession build() throws SshSessionlException {
 			if (keyFile != null) {
 				try {
@@ -0,0 +1,62 @@
+package com.thetechnovator.ssh;
+
+/**
+ * A session borrowed from a {@link SshSessionPool}. Closing the lease returns the session to the pool, the session
+ * itself must not be closed.
+ *
+ * @author JogaSingh
+ *
+ */
+public class SshSessionLease implements AutoCloseable {
+	private SshSessionPool pool;
+	private SshSessionPool.HostPool hostPool;
+	private SshSession session;
+	private boolean released = false;
+
+	SshSessionLease(SshSessionPool pool, SshSessionPool.HostPool hostPool, SshSession session) {
+		this.pool = pool;
+		this.hostPool = hostPool;
+		this.session = session;
+	}
+
+	public SshSession getSession() {
+		if (released) {
+			throw new IllegalStateException("Lease is already closed");
+		}
+		return session;
+	}
+
+	/**
+	 * Returns a helper working on the leased session. Disconnecting the helper does not close the session.
+	 *
+	 * @param connectUserRequiresSudo - whether commands are to be prefixed with 'sudo'
+	 * @return
+	 */
+	public SshHelper getHelper(boolean connectUserRequiresSudo) {
+		return new SshHelper(getSession(), connectUserRequiresSudo);
+	}
+
+	/**
+	 * Closes the session instead of returning it to the pool. To be used when the session is in an unknown state, e.g.
+	 * after a failed 'su'.
+	 */
+	public synchronized void invalidate() {
+		if (released) {
+			return;
+		}
+		released = true;
+		pool.discard(hostPool, session);
+	}
+
+	/**
+	 * Returns the session to the pool.
+	 */
+	@Override
+	public synchronized void close() {
+		if (released) {
+			return;
+		}
+		released = true;
+		pool.release(hostPool, session);
+	}
+}
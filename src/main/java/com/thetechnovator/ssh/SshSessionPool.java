@@ -0,0 +1,345 @@
+package com.thetechnovator.ssh;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps connected {@link SshSession}s for reuse, so that connecting and authenticating is done once per session instead
+ * of once per use.
+ *
+ * Sessions are kept per host, port, username, credentials, execution mode and compression. Leased sessions are
+ * returned to the pool by closing the {@link SshSessionLease}. Idle sessions are checked with
+ * {@link SshSession#isAlive(long)} before they are handed out, and closed after being idle for longer than the idle
+ * timeout. When all sessions of a host are in use, {@link #lease(SshSession)} waits for one to be returned.
+ *
+ * A shell session is handed out as it was returned. Callers who change the shell state ('su', 'cd', variables) must
+ * undo it before closing the lease, or invalidate the lease instead.
+ *
+ * This object can be constructed intuitively using the {@link Builder}.
+ *
+ * @author JogaSingh
+ *
+ */
+public class SshSessionPool implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(SshSessionPool.class);
+	public static final int DEFAULT_MAX_PER_HOST = 4;
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000; // 5 minutes
+	public static final long DEFAULT_MAX_WAIT = 60 * 1000; // 1 minute
+	public static final long DEFAULT_VALIDATION_TIMEOUT = 5 * 1000; // 5 seconds
+
+	private int maxPerHost = DEFAULT_MAX_PER_HOST;
+	private long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT;
+	private long maxWaitMs = DEFAULT_MAX_WAIT;
+	private long validationTimeoutMs = DEFAULT_VALIDATION_TIMEOUT;
+	private final Map<SessionKey, HostPool> pools = new HashMap<>();
+	private ScheduledExecutorService evictor;
+	private boolean closed = false;
+
+	private SshSessionPool() {
+
+	}
+
+	/**
+	 * Leases a connected session with the settings of the given session. The given session is only used as a template, it
+	 * is neither connected nor handed out.
+	 *
+	 * @param template - session built with the {@link SshSession.Builder}
+	 * @return lease which must be closed to return the session to the pool
+	 * @throws SshSessionlException if no session could be connected or none became free within the maximum wait time
+	 */
+	public SshSessionLease lease(SshSession template) throws SshSessionlException {
+		SessionKey key = new SessionKey(template);
+		HostPool pool = hostPool(key);
+		long deadline = System.currentTimeMillis() + maxWaitMs;
+		while (true) {
+			if (pool.removed) {
+				// evicted while empty, before a place was reserved in it
+				pool = hostPool(key);
+			}
+			IdleSession idle;
+			synchronized (pool) {
+				if (pool.removed) {
+					continue;
+				}
+				idle = pool.idle.pollFirst();
+				if (idle == null) {
+					if (pool.total < maxPerHost) {
+						// reserve the place before connecting outside the lock
+						pool.total++;
+					} else {
+						long wait = deadline - System.currentTimeMillis();
+						if (wait <= 0) {
+							throw new SshSessionlException("No session available for " + key + " within " + Utils.msToNamedTimeInterval(maxWaitMs));
+						}
+						try {
+							pool.wait(wait);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new SshSessionlException("Interrupted while waiting for a session", e);
+						}
+						continue;
+					}
+				}
+			}
+			if (idle != null) {
+				if (idle.session.isAlive(validationTimeoutMs)) {
+					return new SshSessionLease(this, pool, idle.session);
+				}
+				LOG.debug("Discarding dead session for " + key);
+				discard(pool, idle.session);
+				continue;
+			}
+			return new SshSessionLease(this, pool, connect(pool, template));
+		}
+	}
+
+	private HostPool hostPool(SessionKey key) throws SshSessionlException {
+		synchronized (pools) {
+			if (closed) {
+				throw new SshSessionlException("Session pool is closed");
+			}
+			HostPool pool = pools.get(key);
+			if (pool == null) {
+				pool = new HostPool(key);
+				pools.put(key, pool);
+			}
+			return pool;
+		}
+	}
+
+	private SshSession connect(HostPool pool, SshSession template) throws SshSessionlException {
+		SshSession session = template.copy();
+		try {
+			session.connect();
+			return session;
+		} catch (SshSessionlException | RuntimeException e) {
+			discard(pool, session);
+			throw e;
+		}
+	}
+
+	void release(HostPool pool, SshSession session) {
+		if (!session.isOpen()) {
+			discard(pool, session);
+			return;
+		}
+		boolean closePool;
+		synchronized (pools) {
+			closePool = closed;
+		}
+		if (closePool) {
+			discard(pool, session);
+			return;
+		}
+		synchronized (pool) {
+			pool.idle.addFirst(new IdleSession(session));
+			pool.notify();
+		}
+	}
+
+	void discard(HostPool pool, SshSession session) {
+		session.close();
+		synchronized (pool) {
+			pool.total--;
+			pool.notify();
+		}
+	}
+
+	private void evictIdle() {
+		List<HostPool> all;
+		synchronized (pools) {
+			all = new ArrayList<>(pools.values());
+		}
+		long limit = System.currentTimeMillis() - idleTimeoutMs;
+		for (HostPool pool : all) {
+			List<SshSession> expired = new ArrayList<>();
+			synchronized (pool) {
+				// most recently used sessions are at the head
+				Iterator<IdleSession> it = pool.idle.descendingIterator();
+				while (it.hasNext()) {
+					IdleSession idle = it.next();
+					if (idle.idleSince > limit) {
+						break;
+					}
+					it.remove();
+					expired.add(idle.session);
+				}
+			}
+			for (SshSession session : expired) {
+				LOG.debug("Closing idle session for " + pool.key);
+				discard(pool, session);
+			}
+			// pools of hosts no longer used must not pile up
+			synchronized (pools) {
+				synchronized (pool) {
+					if (pool.total == 0 && pool.idle.isEmpty()) {
+						pool.removed = true;
+						pools.remove(pool.key);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes all idle sessions. Leased sessions are closed when their lease is closed.
+	 */
+	@Override
+	public void close() {
+		List<HostPool> all;
+		synchronized (pools) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			all = new ArrayList<>(pools.values());
+		}
+		evictor.shutdownNow();
+		for (HostPool pool : all) {
+			List<IdleSession> idle;
+			synchronized (pool) {
+				idle = new ArrayList<>(pool.idle);
+				pool.idle.clear();
+			}
+			for (IdleSession session : idle) {
+				discard(pool, session.session);
+			}
+		}
+	}
+
+	private void start() {
+		evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ssh-session-pool-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1000, idleTimeoutMs / 2);
+		evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	static final class HostPool {
+		private final SessionKey key;
+		private final Deque<IdleSession> idle = new ArrayDeque<>();
+		private int total = 0;
+		private boolean removed = false;
+
+		private HostPool(SessionKey key) {
+			this.key = key;
+		}
+	}
+
+	private static final class IdleSession {
+		private final SshSession session;
+		private final long idleSince = System.currentTimeMillis();
+
+		private IdleSession(SshSession session) {
+			this.session = session;
+		}
+	}
+
+	private static final class SessionKey {
+		private final String host;
+		private final int port;
+		private final String username;
+		private final String credential;
+		private final ExecutionMode executionMode;
+		private final boolean compression;
+
+		private SessionKey(SshSession session) {
+			this.host = session.getHost();
+			this.port = session.getPort();
+			this.username = session.getUsername();
+			this.credential = session.getCredentialIdentity();
+			this.executionMode = session.getExecutionMode();
+			this.compression = session.isCompression();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof SessionKey)) {
+				return false;
+			}
+			SessionKey other = (SessionKey) obj;
+			return port == other.port && Objects.equals(host, other.host) && Objects.equals(username, other.username)
+					&& Objects.equals(credential, other.credential) && executionMode == other.executionMode && compression == other.compression;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(host, port, username, credential, executionMode, compression);
+		}
+
+		@Override
+		public String toString() {
+			return username + "@" + host + ":" + port;
+		}
+	}
+
+	/**
+	 * Builder for SshSessionPool
+	 *
+	 * @author JogaSingh
+	 *
+	 */
+	public static class Builder {
+		private SshSessionPool pool = new SshSessionPool();
+
+		public static Builder getInstance() {
+			return new Builder();
+		}
+
+		/**
+		 * Maximum number of sessions, leased and idle, per host, port, username and credentials. Default is
+		 * {@value SshSessionPool#DEFAULT_MAX_PER_HOST}.
+		 */
+		public Builder maxPerHost(int maxPerHost) {
+			pool.maxPerHost = maxPerHost;
+			return this;
+		}
+
+		/**
+		 * Idle sessions are closed after this time. Default is 5 minutes.
+		 */
+		public Builder idleTimeoutMs(long idleTimeoutMs) {
+			pool.idleTimeoutMs = idleTimeoutMs;
+			return this;
+		}
+
+		/**
+		 * Maximum time {@link SshSessionPool#lease(SshSession)} waits for a session when all are in use. Default is 1
+		 * minute.
+		 */
+		public Builder maxWaitMs(long maxWaitMs) {
+			pool.maxWaitMs = maxWaitMs;
+			return this;
+		}
+
+		/**
+		 * Maximum time to wait for the liveness check reply of an idle session. Default is 5 seconds.
+		 */
+		public Builder validationTimeoutMs(long validationTimeoutMs) {
+			pool.validationTimeoutMs = validationTimeoutMs;
+			return this;
+		}
+
+		public SshSessionPool build() {
+			pool.start();
+			return pool;
+		}
+	}
+}
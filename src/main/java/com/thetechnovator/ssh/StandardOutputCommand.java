@@ -40,7 +40,8 @@ public  class StandardOutputCommand extends AbstractCommandExecutor {
 				}
 			}
 		};
-		String command=cmd.getCommandLine();
+		//the start marker lets the reader skip the echo and any prompt left over from the previous command
+		String command=getCommandWithStartMarker(cmd.getCommandLine());
 		sendCommand(command);
 		return reader.readCommandOutput(command);
 	}
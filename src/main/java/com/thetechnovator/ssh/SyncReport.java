@@ -0,0 +1,84 @@
+package com.thetechnovator.ssh;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a {@link DirectorySync}: which files were sent or deleted, and how many bytes did not need to be sent
+ * because the remote copy was already up to date.
+ *
+ * @author JogaSingh
+ *
+ */
+public class SyncReport {
+	private int filesChecked;
+	private final List<String> transferredFiles = new ArrayList<>();
+	private final List<String> deletedFiles = new ArrayList<>();
+	private long bytesTransferred;
+	private long bytesSkipped;
+	private long durationMs;
+
+	synchronized void checked(int count) {
+		filesChecked += count;
+	}
+
+	synchronized void transferred(String path, long size) {
+		transferredFiles.add(path);
+		bytesTransferred += size;
+	}
+
+	synchronized void skipped(long size) {
+		bytesSkipped += size;
+	}
+
+	synchronized void deleted(String path) {
+		deletedFiles.add(path);
+	}
+
+	void setDurationMs(long durationMs) {
+		this.durationMs = durationMs;
+	}
+
+	/**
+	 * Number of local files compared with the remote side.
+	 */
+	public synchronized int getFilesChecked() {
+		return filesChecked;
+	}
+
+	/**
+	 * Relative paths of the files which were sent, because they were missing or different on the remote side.
+	 */
+	public synchronized List<String> getTransferredFiles() {
+		return Collections.unmodifiableList(new ArrayList<>(transferredFiles));
+	}
+
+	/**
+	 * Relative paths of the remote files which were deleted because they do not exist locally.
+	 */
+	public synchronized List<String> getDeletedFiles() {
+		return Collections.unmodifiableList(new ArrayList<>(deletedFiles));
+	}
+
+	public synchronized long getBytesTransferred() {
+		return bytesTransferred;
+	}
+
+	/**
+	 * Bytes of the files which were already up to date and therefore not sent.
+	 */
+	public synchronized long getBytesSaved() {
+		return bytesSkipped;
+	}
+
+	public long getDurationMs() {
+		return durationMs;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SyncReport [filesChecked=" + filesChecked + ", filesTransferred=" + transferredFiles.size() + ", filesDeleted=" + deletedFiles.size()
+				+ ", bytesTransferred=" + bytesTransferred + ", bytesSaved=" + bytesSkipped + ", duration=" + Utils.msToNamedTimeInterval(durationMs) + "]";
+	}
+}
@@ -1,9 +1,14 @@
 package com.thetechnovator.ssh;
 
 import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.KeyFactory;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -56,6 +61,44 @@ public class Utils {
 		}
         
 	}
+	public static String sha256Hex(String str) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return toHex(digest.digest(str.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	/**
+	 * SHA-256 of the content of the file, in the format of 'sha256sum'.
+	 */
+	public static String sha256Hex(File file) throws IOException {
+		try (InputStream in = new FileInputStream(file)) {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] buf = new byte[64 * 1024];
+			int len;
+			while ((len = in.read(buf)) != -1) {
+				digest.update(buf, 0, len);
+			}
+			return toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	static String toHex(byte[] hash) {
+		StringBuilder sb = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+	/**
+	 * Quotes the argument for a POSIX shell, so that it is passed as one word without any expansion.
+	 */
+	public static String shellQuote(String arg) {
+		return "'" + arg.replace("'", "'\\''") + "'";
+	}
 	public static void closeQuietly(Closeable closable) {
 		if (closable == null)
 			return;
@@ -0,0 +1,51 @@
+package com.thetechnovator.ssh;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+public class BatchDemultiplexerTest {
+	private static final String GS = "\u001D";
+	private static final String STX = "\u0002";
+	private static final String RS = "\u001E";
+	private static final String US = "\u001F";
+
+	@Test
+	public void splitTest() throws Exception {
+		List<SshCommand> cmds = Arrays.asList(new SshCommand("echo one", null, false), new SshCommand("ls /none", null, false));
+		BatchDemultiplexer demux = new BatchDemultiplexer(cmds, () -> {
+		});
+		String stream = "$ echo one\r\n" + GS + STX + "0" + US + "one\r\n" + GS + RS + "0" + US + "$ > ls /none\r\n" + GS + STX + "1" + US + "a" + GS
+				+ "b\r\n" + GS + RS + "2" + US + "$ ";
+		demux.start();
+		// one byte at a time, the records span across chunks
+		byte[] bytes = stream.getBytes();
+		for (byte b : bytes) {
+			demux.write(b);
+		}
+		demux.stop();
+		Assert.assertNull(demux.getError());
+		Assert.assertTrue(demux.isComplete());
+		List<CommandResult> results = demux.getResults();
+		Assert.assertEquals(0, results.get(0).getExitStatus());
+		Assert.assertEquals("one\r\n", results.get(0).getOutput());
+		Assert.assertEquals(2, results.get(1).getExitStatus());
+		Assert.assertEquals("a" + GS + "b\r\n", results.get(1).getOutput());
+	}
+
+	@Test
+	public void unexpectedIndexTest() throws Exception {
+		List<SshCommand> cmds = Arrays.asList(new SshCommand("echo one", null, false));
+		boolean[] aborted = new boolean[1];
+		BatchDemultiplexer demux = new BatchDemultiplexer(cmds, () -> aborted[0] = true);
+		demux.start();
+		demux.write((GS + STX + "3" + US + "one").getBytes());
+		demux.stop();
+		Assert.assertNotNull(demux.getError());
+		Assert.assertTrue(aborted[0]);
+		Assert.assertFalse(demux.isComplete());
+	}
+}
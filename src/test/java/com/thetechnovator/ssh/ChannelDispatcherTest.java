@@ -0,0 +1,79 @@
+package com.thetechnovator.ssh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+public class ChannelDispatcherTest {
+
+	@Test
+	public void limitTest() throws Exception {
+		ChannelDispatcher dispatcher = new ChannelDispatcher(2);
+		AtomicInteger started = new AtomicInteger();
+		List<CompletableFuture<Integer>> running = new ArrayList<>();
+		List<CompletableFuture<Integer>> results = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			results.add(dispatcher.submit(() -> {
+				started.incrementAndGet();
+				CompletableFuture<Integer> f = new CompletableFuture<>();
+				running.add(f);
+				return f;
+			}));
+		}
+		// only two may run at the same time
+		Assert.assertEquals(2, started.get());
+		running.get(0).complete(0);
+		Assert.assertEquals(3, started.get());
+		running.get(1).complete(1);
+		running.get(2).complete(2);
+		running.get(3).complete(3);
+		running.get(4).complete(4);
+		Assert.assertEquals(5, started.get());
+		for (int i = 0; i < 5; i++) {
+			Assert.assertEquals(i, results.get(i).get().intValue());
+		}
+	}
+
+	@Test
+	public void longQueueTest() throws Exception {
+		ChannelDispatcher dispatcher = new ChannelDispatcher(1);
+		CompletableFuture<Integer> first = new CompletableFuture<>();
+		dispatcher.submit(() -> first);
+		List<CompletableFuture<Integer>> results = new ArrayList<>();
+		for (int i = 0; i < 100000; i++) {
+			// e.g. channels which cannot be opened any more
+			results.add(dispatcher.submit(() -> {
+				CompletableFuture<Integer> f = new CompletableFuture<>();
+				f.completeExceptionally(new SshSessionlException("Session is down"));
+				return f;
+			}));
+		}
+		first.complete(0);
+		for (CompletableFuture<Integer> result : results) {
+			Assert.assertTrue(result.isCompletedExceptionally());
+		}
+		// the channel is free again
+		Assert.assertEquals(1, dispatcher.submit(() -> CompletableFuture.completedFuture(1)).get().intValue());
+	}
+
+	@Test
+	public void closeTest() throws Exception {
+		ChannelDispatcher dispatcher = new ChannelDispatcher(1);
+		CompletableFuture<Integer> first = new CompletableFuture<>();
+		dispatcher.submit(() -> first);
+		CompletableFuture<Integer> queued = dispatcher.submit(() -> CompletableFuture.completedFuture(0));
+		dispatcher.close();
+		try {
+			queued.get();
+			Assert.fail("Queued command should fail when the dispatcher is closed");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof SshSessionlException);
+		}
+	}
+}
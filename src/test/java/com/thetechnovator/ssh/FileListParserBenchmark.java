@@ -0,0 +1,92 @@
+package com.thetechnovator.ssh;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares {@link FileListParser} with splitting the whole listing into Strings and parsing the times with a shared
+ * SimpleDateFormat, as 'SshHelper' did before. Not run by the tests; run the main method from the IDE, or after
+ * 'mvn test-compile' with the test classpath, optionally with a JMH option like '-prof gc'.
+ *
+ * @author JogaSingh
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileListParserBenchmark {
+	private static final SimpleDateFormat fileTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSSSSSSS");
+
+	@Param({ "10000" })
+	private int files;
+	private byte[] lsOutput;
+	private String lsString;
+	private byte[] findOutput;
+
+	@Setup
+	public void setup() {
+		StringBuilder ls = new StringBuilder("total 123456\n");
+		StringBuilder find = new StringBuilder();
+		for (int i = 0; i < files; i++) {
+			String path = "/app/tibco/ae/tra/domain/DBE_AE_001/application/logs/asl-ndm-abrp_" + i + ".log";
+			ls.append("-rw-r--r-- 1 twix16 twix16 ").append(10151867 + i).append(" 2019-03-14 12:32:51.")
+					.append(String.format("%09d", i)).append(" +0100 ").append(path).append('\n');
+			find.append("f ").append(10151867 + i).append(" 1552563171.").append(String.format("%010d", i)).append(' ').append(path)
+					.append('\0');
+		}
+		lsString = ls.toString();
+		lsOutput = lsString.getBytes(SshHelper.UTF8);
+		findOutput = find.toString().getBytes(SshHelper.UTF8);
+	}
+
+	@Benchmark
+	public void splitAndSimpleDateFormat(Blackhole blackhole) throws ParseException {
+		for (String line : StringUtils.split(lsString, '\n')) {
+			if (line.startsWith("total")) {
+				continue;
+			}
+			String[] tokens = StringUtils.split(line, " ");
+			synchronized (fileTimeFormat) {
+				blackhole.consume(new RemoteFile(tokens[8], Long.parseLong(tokens[4]), fileTimeFormat.parse(tokens[5] + " " + tokens[6]),
+						tokens[0].charAt(0) == 'd'));
+			}
+		}
+	}
+
+	@Benchmark
+	public long parseLs(Blackhole blackhole) throws IOException {
+		return FileListParser.parseLs(new ByteArrayInputStream(lsOutput), blackhole::consume);
+	}
+
+	@Benchmark
+	public long parseFind(Blackhole blackhole) throws IOException {
+		return FileListParser.parseFind(new ByteArrayInputStream(findOutput), blackhole::consume);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(FileListParserBenchmark.class.getSimpleName()).build()).run();
+	}
+}
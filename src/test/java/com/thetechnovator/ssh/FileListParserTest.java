@@ -0,0 +1,75 @@
+package com.thetechnovator.ssh;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+public class FileListParserTest {
+
+	@Test
+	public void parseFindTest() throws IOException {
+		String output = "f 10151867 1552563171.1234567890 /app/logs/my app.log\u0000"
+				+ "d 4096 1552563171 /app/logs/dir\nwith line feed\u0000"
+				+ "l 7 -1.5000000000 /app/logs/link -> x\u0000"
+				+ "f 0 1552563171.9 /app/logs/\u00fc \u00df\u0000";
+		List<RemoteFile> files = parseFind(output);
+		Assert.assertEquals(4, files.size());
+		Assert.assertEquals("/app/logs/my app.log", files.get(0).getAbsolutePath());
+		Assert.assertEquals(10151867, files.get(0).getSize());
+		Assert.assertEquals(1552563171123L, files.get(0).getModifiedTimeMillis());
+		Assert.assertFalse(files.get(0).isDirectory());
+		Assert.assertEquals("/app/logs/dir\nwith line feed", files.get(1).getAbsolutePath());
+		Assert.assertEquals(1552563171000L, files.get(1).getModifiedTimeMillis());
+		Assert.assertTrue(files.get(1).isDirectory());
+		Assert.assertEquals("/app/logs/link -> x", files.get(2).getAbsolutePath());
+		Assert.assertEquals(-1500, files.get(2).getModifiedTimeMillis());
+		Assert.assertEquals("/app/logs/\u00fc \u00df", files.get(3).getAbsolutePath());
+		Assert.assertEquals(1552563171900L, files.get(3).getModifiedTimeMillis());
+	}
+
+	@Test
+	public void parseFindSkipTest() throws IOException {
+		// error messages mixed into the output, and a last record without NUL
+		List<RemoteFile> files = parseFind("find: '/x': Permission denied\n\u0000\u0000f 1 2 /a\u0000f x 2 /b\u0000f 3 4 /c");
+		Assert.assertEquals(2, files.size());
+		Assert.assertEquals("/a", files.get(0).getAbsolutePath());
+		Assert.assertEquals("/c", files.get(1).getAbsolutePath());
+		Assert.assertEquals(4000, files.get(1).getModifiedTimeMillis());
+	}
+
+	@Test
+	public void parseLsTest() throws IOException {
+		String output = "total 12\n"
+				+ "-rw-r--r-- 1 twix16 twix16 10151867 2019-03-14 12:32:51.123456789 +0100 /app/logs/my  app.log\n"
+				+ "drwxr-xr-x. 2 root   root       4096 2018-11-13 11:41:22.000000000 -0530 logs\r\n"
+				+ "lrwxrwxrwx 1 root root 7 2020-02-29 00:00:00.5 +0000 current -> app.log\n"
+				+ "crw-rw-rw- 1 root root 1,   3 2021-01-01 00:00:00.000000000 +0000 null\n"
+				+ "\n"
+				+ "/app/logs:\n"
+				+ "ls: cannot access 'x': No such file or directory\n";
+		List<RemoteFile> files = new ArrayList<>();
+		Assert.assertEquals(4, FileListParser.parseLs(new ByteArrayInputStream(output.getBytes(SshHelper.UTF8)), files::add));
+		Assert.assertEquals("/app/logs/my  app.log", files.get(0).getAbsolutePath());
+		Assert.assertEquals(10151867, files.get(0).getSize());
+		Assert.assertEquals(Instant.parse("2019-03-14T11:32:51.123Z"), files.get(0).getModifiedInstant());
+		Assert.assertEquals("logs", files.get(1).getAbsolutePath());
+		Assert.assertTrue(files.get(1).isDirectory());
+		Assert.assertEquals(Instant.parse("2018-11-13T17:11:22Z"), files.get(1).getModifiedInstant());
+		Assert.assertEquals("current", files.get(2).getAbsolutePath());
+		Assert.assertEquals(Instant.parse("2020-02-29T00:00:00.500Z"), files.get(2).getModifiedInstant());
+		Assert.assertEquals("null", files.get(3).getAbsolutePath());
+		Assert.assertEquals(0, files.get(3).getSize());
+	}
+
+	private static List<RemoteFile> parseFind(String output) throws IOException {
+		List<RemoteFile> files = new ArrayList<>();
+		FileListParser.parseFind(new ByteArrayInputStream(output.getBytes(SshHelper.UTF8)), files::add);
+		return files;
+	}
+}
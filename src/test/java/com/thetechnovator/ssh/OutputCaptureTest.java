@@ -0,0 +1,45 @@
+package com.thetechnovator.ssh;
+
+import org.apache.commons.io.LineIterator;
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+public class OutputCaptureTest {
+
+	@Test
+	public void inMemoryTest() throws Exception {
+		try (OutputCapture capture = new OutputCapture()) {
+			capture.write("line1\nline2\n".getBytes());
+			Assert.assertFalse(capture.isSpilled());
+			Assert.assertEquals("line1\nline2\n", capture.toString(SshHelper.UTF8));
+			Assert.assertEquals(12, capture.toByteArray().length);
+			LineIterator it = capture.lineIterator(SshHelper.UTF8);
+			Assert.assertEquals("line1", it.nextLine());
+			Assert.assertEquals("line2", it.nextLine());
+			Assert.assertFalse(it.hasNext());
+		}
+	}
+
+	@Test
+	public void spillTest() throws Exception {
+		StringBuilder expected = new StringBuilder();
+		try (OutputCapture capture = new OutputCapture(100)) {
+			for (int i = 0; i < 50; i++) {
+				String line = "line" + i + "\n";
+				expected.append(line);
+				capture.write(line.getBytes());
+			}
+			Assert.assertTrue(capture.isSpilled());
+			Assert.assertEquals(expected.length(), capture.size());
+			Assert.assertEquals(expected.toString(), capture.toString(SshHelper.UTF8));
+			try (LineIterator it = capture.lineIterator(SshHelper.UTF8)) {
+				int count = 0;
+				while (it.hasNext()) {
+					Assert.assertEquals("line" + count++, it.nextLine());
+				}
+				Assert.assertEquals(50, count);
+			}
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package com.thetechnovator.ssh;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+public class ParallelGrepTest {
+
+	@Test
+	public void parseTest() {
+		GrepMatch match = ParallelGrep.parse("/var/log/we:ird.log\u000012:ERROR: a:b");
+		Assert.assertEquals("/var/log/we:ird.log", match.getPath());
+		Assert.assertEquals(12, match.getLineNumber());
+		Assert.assertEquals("ERROR: a:b", match.getLine());
+		match = ParallelGrep.parse("/var/log/app.log\u00003:");
+		Assert.assertEquals("", match.getLine());
+	}
+
+	@Test
+	public void skipNoticesTest() {
+		Assert.assertNull(ParallelGrep.parse("Binary file /var/log/app.bin matches"));
+		Assert.assertNull(ParallelGrep.parse("/var/log/app.log\u0000x:y"));
+	}
+}
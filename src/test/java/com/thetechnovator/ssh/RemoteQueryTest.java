@@ -0,0 +1,38 @@
+package com.thetechnovator.ssh;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+public class RemoteQueryTest {
+
+	@Test
+	public void firstFilterReadsFilesTest() {
+		RemoteQuery query = RemoteQuery.Builder.getInstance().file("/var/log/app.log*").containing("it's").notMatching("DEBUG|TRACE").build();
+		Assert.assertEquals("grep -F -e 'it'\\''s' -h -- /var/log/app.log* | grep -v -E -e 'DEBUG|TRACE' | wc -l", query.countCommand());
+	}
+
+	@Test
+	public void gzipAndTimeRangeTest() {
+		RemoteQuery query = RemoteQuery.Builder.getInstance().file("/var/log/app.log.1.gz").matching("ERROR").between("2024-05-01T10", null).build();
+		Assert.assertEquals("zcat -f -- /var/log/app.log.1.gz | grep -E -e 'ERROR' | QF='2024-05-01T10' awk 'substr($0, 1, length(ENVIRON[\"QF\"])) >= ENVIRON[\"QF\"]' | head -n 5",
+				query.selectCommand(5));
+	}
+
+	@Test
+	public void countByTest() {
+		RemoteQuery query = RemoteQuery.Builder.getInstance().file("a.csv").fieldSeparator(",").build();
+		Assert.assertEquals("cat -- a.csv | QS=',' awk 'BEGIN { FS = ENVIRON[\"QS\"] } { print $2 }' | LC_ALL=C sort | LC_ALL=C uniq -c | LC_ALL=C sort -k1,1nr -k2 | head -n 10",
+				query.countByCommand(2, 10));
+	}
+
+	@Test
+	public void parseCountTest() {
+		RemoteQuery.Count count = RemoteQuery.parseCount("   3297 user 9");
+		Assert.assertEquals("user 9", count.getValue());
+		Assert.assertEquals(3297, count.getCount());
+		count = RemoteQuery.parseCount("     12 ");
+		Assert.assertEquals("", count.getValue());
+		Assert.assertEquals(12, count.getCount());
+	}
+}
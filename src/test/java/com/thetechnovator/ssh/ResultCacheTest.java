@@ -0,0 +1,85 @@
+package com.thetechnovator.ssh;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.thetechnovator.ssh.ResultCache.Operation;
+
+import junit.framework.Assert;
+
+public class ResultCacheTest {
+
+	@Test
+	public void hitAndExpiryTest() throws Exception {
+		ResultCache cache = ResultCache.Builder.getInstance().ttlMs(Operation.TAIL, 200).ttlMs(Operation.FILE_EXISTS, 0).build();
+		AtomicInteger loads = new AtomicInteger();
+		Assert.assertEquals("1", cache.get("h", "u", Operation.TAIL, "10 /a", "/a", () -> "" + loads.incrementAndGet()));
+		Assert.assertEquals("1", cache.get("h", "u", Operation.TAIL, "10 /a", "/a", () -> "" + loads.incrementAndGet()));
+		// another user is another result
+		Assert.assertEquals("2", cache.get("h", "v", Operation.TAIL, "10 /a", "/a", () -> "" + loads.incrementAndGet()));
+		Thread.sleep(300);
+		Assert.assertEquals("3", cache.get("h", "u", Operation.TAIL, "10 /a", "/a", () -> "" + loads.incrementAndGet()));
+		// not cached
+		cache.get("h", "u", Operation.FILE_EXISTS, "/a", "/a", () -> loads.incrementAndGet());
+		cache.get("h", "u", Operation.FILE_EXISTS, "/a", "/a", () -> loads.incrementAndGet());
+		Assert.assertEquals(5, loads.get());
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(3, cache.getMisses());
+	}
+
+	@Test
+	public void lruEvictionTest() throws Exception {
+		ResultCache cache = ResultCache.Builder.getInstance().maxEntries(2).build();
+		cache.get("h", "u", Operation.TAIL, "a", "/a", () -> "a");
+		cache.get("h", "u", Operation.TAIL, "b", "/b", () -> "b");
+		// 'a' becomes the most recently used
+		cache.get("h", "u", Operation.TAIL, "a", "/a", () -> "x");
+		cache.get("h", "u", Operation.TAIL, "c", "/c", () -> "c");
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals(1, cache.getEvictions());
+		Assert.assertEquals("a", cache.get("h", "u", Operation.TAIL, "a", "/a", () -> "x"));
+		Assert.assertEquals("y", cache.get("h", "u", Operation.TAIL, "b", "/b", () -> "y"));
+	}
+
+	@Test
+	public void invalidateTest() throws Exception {
+		ResultCache cache = ResultCache.Builder.getInstance().build();
+		cache.get("h", "u", Operation.LIST_FILES, "/logs/*.log", "/logs/*.log", () -> "list");
+		cache.get("h", "u", Operation.FILE_EXISTS, "/logs/old/a.log", "/logs/old/a.log", () -> "exists");
+		cache.get("h", "u", Operation.TAIL, "/other/b.log", "/other/b.log", () -> "tail");
+		cache.get("g", "u", Operation.LIST_FILES, "/logs/*.log", "/logs/*.log", () -> "list");
+		cache.get("h", "root sudo", Operation.LIST_FILES, "/logs/*.log", "/logs/*.log", () -> "list");
+		// changes made as one user are seen by the others
+		cache.invalidate("h", "/logs/new.log");
+		Assert.assertEquals(3, cache.size());
+		cache.invalidate("h", "/logs/");
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals("tail", cache.get("h", "u", Operation.TAIL, "/other/b.log", "/other/b.log", () -> "new"));
+	}
+
+	@Test
+	public void changeDuringLoadTest() throws Exception {
+		ResultCache cache = ResultCache.Builder.getInstance().build();
+		// another thread changes the directory while the listing is loaded
+		Assert.assertEquals("before", cache.get("h", "u", Operation.LIST_FILES, "/logs", "/logs", () -> {
+			cache.invalidate("h", "/logs/a.log");
+			return "before";
+		}));
+		Assert.assertEquals(0, cache.size());
+		Assert.assertEquals("after", cache.get("h", "u", Operation.LIST_FILES, "/logs", "/logs", () -> "after"));
+		Assert.assertEquals("after", cache.get("h", "u", Operation.LIST_FILES, "/logs", "/logs", () -> "later"));
+	}
+
+	@Test
+	public void pathTest() {
+		Assert.assertEquals("/logs", ResultCache.baseOf("/logs/app*.log"));
+		Assert.assertEquals("/logs/app.log", ResultCache.baseOf("/logs/app.log"));
+		Assert.assertEquals("/logs", ResultCache.baseOf("/logs/"));
+		Assert.assertEquals("", ResultCache.baseOf("*.log"));
+		Assert.assertTrue(ResultCache.overlaps("/logs", "/logs/a"));
+		Assert.assertTrue(ResultCache.overlaps("/logs/a", "/logs"));
+		Assert.assertFalse(ResultCache.overlaps("/logs", "/logs2"));
+		Assert.assertTrue(ResultCache.overlaps("", "/anything"));
+	}
+}